@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs TwitterApi calls in the background and answers with a Future and,
+ * optionally, a callback on the main thread.
+ *
+ * Calls share a few threads and queue up behind each other instead of each
+ * holding a UserTask thread for a whole round trip, so fire-and-forget work
+ * such as prefetches can't starve the UserTask pool. The queue is unbounded;
+ * the threads are what's limited, to about as many as the connection pool
+ * will let through to one host anyway.
+ */
+public class AsyncTwitterApi {
+  private static final String TAG = "AsyncTwitterApi";
+
+  public static final int DEFAULT_THREADS = 3;
+
+  private static final int KEEP_ALIVE_SECS = 30;
+
+  /**
+   * Results are delivered on the main thread. Neither method is called if
+   * the future was cancelled.
+   */
+  public interface Callback<T> {
+    public void onSuccess(T result);
+
+    // e is an IOException, AuthException, ApiException or RuntimeException.
+    public void onFailure(Exception e);
+  }
+
+  public interface Call<T> {
+    public T call(TwitterApi api) throws Exception;
+  }
+
+  private final TwitterApi mApi;
+  private final ThreadPoolExecutor mExecutor;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+  public AsyncTwitterApi(TwitterApi api) {
+    this(api, DEFAULT_THREADS);
+  }
+
+  public AsyncTwitterApi(TwitterApi api, int threads) {
+    mApi = api;
+
+    // Cancelling a running call aborts its request.
+    mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        RequestScope.newThreadFactory(TAG));
+  }
+
+  public TwitterApi getApi() {
+    return mApi;
+  }
+
+  /**
+   * Queues call. callback may be null. Cancelling the returned future with
+   * mayInterruptIfRunning aborts the call's request.
+   */
+  public <T> Future<T> submit(final Call<T> call, final Callback<T> callback) {
+    FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+      public T call() throws Exception {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        return call.call(mApi);
+      }
+    }) {
+      @Override
+      protected void done() {
+        if (callback == null || isCancelled()) {
+          return;
+        }
+
+        final T result;
+
+        try {
+          result = get();
+        } catch (InterruptedException e) {
+          return;
+        } catch (ExecutionException e) {
+          deliverFailure(callback, e.getCause());
+          return;
+        }
+
+        mHandler.post(new Runnable() {
+          public void run() {
+            callback.onSuccess(result);
+          }
+        });
+      }
+    };
+
+    mExecutor.execute(future);
+
+    return future;
+  }
+
+  private void deliverFailure(final Callback<?> callback, Throwable cause) {
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+
+    final Exception e = (Exception) cause;
+    Log.e(TAG, e.getMessage(), e);
+
+    mHandler.post(new Runnable() {
+      public void run() {
+        callback.onFailure(e);
+      }
+    });
+  }
+
+  public void shutdown() {
+    mExecutor.shutdownNow();
+  }
+
+  // Convenience wrappers for the calls that are made in the background.
+
+  // Connects to each URL's host side by side. See TwitterApi.warmUp().
+  public void warmUp(Collection<String> urls) {
+    for (final String url : urls) {
+      submit(new Call<Void>() {
+        public Void call(TwitterApi api) {
+          api.warmUp(url);
+          return null;
+        }
+      }, null);
+    }
+  }
+
+  // The API hosts, plus the image host of the newest tweet, which is looked
+  // up in the background too.
+  public void warmUp(final TwitterDbAdapter db) {
+    submit(new Call<Void>() {
+      public Void call(TwitterApi api) {
+        ArrayList<String> urls = api.getWarmUpUrls();
+        String imageUrl = db.fetchNewestProfileImageUrl();
+
+        if (!Utils.isEmpty(imageUrl)) {
+          urls.add(imageUrl);
+        }
+
+        warmUp(urls);
+        return null;
+      }
+    }, null);
+  }
+
+  public Future<Boolean> isFollows(final String a, final String b,
+      Callback<Boolean> callback) {
+    return submit(new Call<Boolean>() {
+      public Boolean call(TwitterApi api) throws Exception {
+        return api.isFollows(a, b);
+      }
+    }, callback);
+  }
+
+}
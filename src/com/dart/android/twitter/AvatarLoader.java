@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+/**
+ * Shows avatars in list rows without reading files on the main thread. A
+ * row's ImageView gets a placeholder straight away, unless the bitmap is
+ * already in memory, and the bitmap once it has been decoded in the
+ * background. Rows are recycled while scrolling, so a view that has been
+ * rebound to another URL in the meantime ignores the result, and its
+ * previous request is cancelled if it hasn't started.
+ *
+ * bind() must be called on the main thread.
+ */
+class AvatarLoader {
+  private static final String TAG = "AvatarLoader";
+
+  // Decoding is CPU bound and the UI thread needs the CPU too.
+  private static final int DECODE_THREADS = 2;
+  private static final int KEEP_ALIVE_SECS = 10;
+
+  private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+      DECODE_THREADS, DECODE_THREADS, KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+    private final AtomicInteger mCount = new AtomicInteger(1);
+
+    public Thread newThread(final Runnable r) {
+      return new Thread(new Runnable() {
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          r.run();
+        }
+      }, TAG + " #" + mCount.getAndIncrement());
+    }
+  });
+
+  private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+  private final ImageCache mImageCache;
+  private final int mPlaceholderId;
+  // The request in flight for each view.
+  private final HashMap<ImageView, Future<?>> mPending =
+      new HashMap<ImageView, Future<?>>();
+
+  AvatarLoader(ImageCache imageCache, int placeholderId) {
+    mImageCache = imageCache;
+    mPlaceholderId = placeholderId;
+  }
+
+  // An empty url shows the placeholder.
+  void bind(final ImageView view, String profileImageUrl) {
+    final String url = Utils.isEmpty(profileImageUrl) ? null
+        : profileImageUrl;
+
+    if (url != null && url.equals(view.getTag())) {
+      // Already showing or loading it.
+      return;
+    }
+
+    Future<?> previous = mPending.remove(view);
+
+    if (previous != null) {
+      previous.cancel(false);
+    }
+
+    view.setTag(url);
+
+    Bitmap bitmap = url == null ? null : mImageCache.getCached(url);
+
+    if (bitmap != null) {
+      view.setImageBitmap(bitmap);
+      return;
+    }
+
+    view.setImageResource(mPlaceholderId);
+
+    if (url == null) {
+      return;
+    }
+
+    mPending.put(view, sExecutor.submit(new Runnable() {
+      public void run() {
+        final Bitmap bitmap = mImageCache.get(url);
+
+        sHandler.post(new Runnable() {
+          public void run() {
+            if (!url.equals(view.getTag())) {
+              // Recycled for another row.
+              return;
+            }
+
+            mPending.remove(view);
+
+            if (bitmap != null) {
+              view.setImageBitmap(bitmap);
+            } else {
+              // Not downloaded yet. Try again on the next bind.
+              view.setTag(null);
+            }
+          }
+        });
+      }
+    }));
+  }
+
+}
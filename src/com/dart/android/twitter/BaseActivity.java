@@ -31,6 +31,22 @@ public class BaseActivity extends Activity {
     mPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 
     manageUpdateChecks();
+    warmUp();
+  }
+
+  // Whether this process has warmed up its connections yet.
+  private static boolean sIsWarmedUp = false;
+
+  // Get DNS, TCP and TLS out of the way while the UI is coming up. Not done
+  // for the service or while logged out, and only once per process.
+  private void warmUp() {
+    if (sIsWarmedUp || !isLoggedIn()
+        || !mPreferences.getBoolean(Preferences.WARM_UP_KEY, true)) {
+      return;
+    }
+
+    sIsWarmedUp = true;
+    getAsyncApi().warmUp(getDb());
   }
 
   protected void handleLoggedOut() {
@@ -55,6 +71,10 @@ public class BaseActivity extends Activity {
     return TwitterApplication.mApi;
   }
 
+  protected AsyncTwitterApi getAsyncApi() {
+    return TwitterApplication.mAsyncApi;
+  }
+
   @Override
   protected void onDestroy() {
     super.onDestroy();
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Least recently used cache of decoded bitmaps, bounded by the bytes their
+ * pixels take rather than by count. Unlike soft references, entries go in a
+ * predictable order and only when the budget is exceeded.
+ */
+class BitmapLruCache {
+  private static final String TAG = "BitmapLruCache";
+
+  // Share of the heap given to the cache when no budget is specified.
+  private static final int HEAP_FRACTION = 8;
+
+  private final LinkedHashMap<String, Bitmap> mMap;
+  private final long mMaxBytes;
+  private long mBytes = 0;
+
+  private long mHitCount = 0;
+  private long mMissCount = 0;
+  private long mPutCount = 0;
+  private long mEvictionCount = 0;
+
+  BitmapLruCache() {
+    this(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+  }
+
+  BitmapLruCache(long maxBytes) {
+    mMaxBytes = maxBytes;
+    // Access order, so iteration starts at the least recently used.
+    mMap = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+
+    Log.i(TAG, "Budget is " + maxBytes + " bytes.");
+  }
+
+  static long sizeOf(Bitmap bitmap) {
+    return (long) bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  synchronized Bitmap get(String key) {
+    Bitmap bitmap = mMap.get(key);
+
+    if (bitmap != null) {
+      ++mHitCount;
+    } else {
+      ++mMissCount;
+    }
+
+    return bitmap;
+  }
+
+  // Unlike get(), leaves the order and the hit and miss counts alone.
+  synchronized boolean contains(String key) {
+    return mMap.containsKey(key);
+  }
+
+  synchronized void put(String key, Bitmap bitmap) {
+    long size = sizeOf(bitmap);
+
+    if (size > mMaxBytes) {
+      // Would push everything else out.
+      remove(key);
+      return;
+    }
+
+    ++mPutCount;
+
+    Bitmap previous = mMap.put(key, bitmap);
+
+    if (previous != null) {
+      mBytes -= sizeOf(previous);
+    }
+
+    mBytes += size;
+
+    trimTo(mMaxBytes);
+  }
+
+  synchronized void remove(String key) {
+    Bitmap previous = mMap.remove(key);
+
+    if (previous != null) {
+      mBytes -= sizeOf(previous);
+    }
+  }
+
+  synchronized void clear() {
+    mMap.clear();
+    mBytes = 0;
+  }
+
+  // Caller must hold the lock.
+  private void trimTo(long maxBytes) {
+    Iterator<Map.Entry<String, Bitmap>> it = mMap.entrySet().iterator();
+
+    while (mBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Bitmap> eldest = it.next();
+      mBytes -= sizeOf(eldest.getValue());
+      it.remove();
+      ++mEvictionCount;
+    }
+  }
+
+  synchronized long getSize() {
+    return mBytes;
+  }
+
+  long getMaxSize() {
+    return mMaxBytes;
+  }
+
+  synchronized int getCount() {
+    return mMap.size();
+  }
+
+  synchronized long getHitCount() {
+    return mHitCount;
+  }
+
+  synchronized long getMissCount() {
+    return mMissCount;
+  }
+
+  synchronized long getPutCount() {
+    return mPutCount;
+  }
+
+  synchronized long getEvictionCount() {
+    return mEvictionCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "bytes=" + mBytes + "/" + mMaxBytes + " count=" + mMap.size()
+        + " hits=" + mHitCount + " misses=" + mMissCount + " puts="
+        + mPutCount + " evictions=" + mEvictionCount;
+  }
+
+}
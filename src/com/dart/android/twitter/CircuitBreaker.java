@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Fails requests fast while a host is clearly down. After a run of
+ * consecutive failures the host is skipped for a cool-off period; once that
+ * passes requests are let through again, and a single further failure trips
+ * it straight back.
+ */
+public class CircuitBreaker {
+  private static final String TAG = "CircuitBreaker";
+
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_OPEN_MS = 30 * 1000;
+
+  private final int mFailureThreshold;
+  private final long mOpenMs;
+
+  private static class HostState {
+    int failures = 0;
+    // Milliseconds since the epoch.
+    long openUntil = 0;
+  }
+
+  private HashMap<String, HostState> mHosts = new HashMap<String, HostState>();
+
+  /**
+   * Thrown instead of sending a request while its host's circuit is open.
+   */
+  public static class OpenException extends IOException {
+    private static final long serialVersionUID = -2289136525512412183L;
+
+    public OpenException(String host) {
+      super("Host unavailable: " + host);
+    }
+  }
+
+  public CircuitBreaker() {
+    this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MS);
+  }
+
+  public CircuitBreaker(int failureThreshold, long openMs) {
+    mFailureThreshold = failureThreshold;
+    mOpenMs = openMs;
+  }
+
+  private HostState getState(String host) {
+    HostState state = mHosts.get(host);
+
+    if (state == null) {
+      state = new HostState();
+      mHosts.put(host, state);
+    }
+
+    return state;
+  }
+
+  public synchronized boolean allowRequest(String host) {
+    HostState state = mHosts.get(host);
+
+    return state == null || System.currentTimeMillis() >= state.openUntil;
+  }
+
+  public synchronized void onSuccess(String host) {
+    HostState state = mHosts.get(host);
+
+    if (state != null) {
+      state.failures = 0;
+      state.openUntil = 0;
+    }
+  }
+
+  public synchronized void onFailure(String host) {
+    HostState state = getState(host);
+    ++state.failures;
+
+    if (state.failures >= mFailureThreshold) {
+      Log.w(TAG, host + " failed " + state.failures
+          + " times in a row. Skipping it for " + mOpenMs + " ms.");
+      state.openUntil = System.currentTimeMillis() + mOpenMs;
+    }
+  }
+
+  public synchronized boolean isOpen(String host) {
+    return !allowRequest(host);
+  }
+
+}
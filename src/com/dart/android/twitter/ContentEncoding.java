@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * Negotiates gzip/deflate with the server and decompresses responses as
+ * they are read. Also counts bytes on both sides of the decompressor so the
+ * savings can be measured for every call.
+ */
+class ContentEncoding {
+  private static final String TAG = "ContentEncoding";
+
+  private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String ENCODING_GZIP = "gzip";
+  private static final String ENCODING_DEFLATE = "deflate";
+
+  private static final int INFLATE_BUFFER_SIZE = 4 * 1024;
+
+  static final HttpRequestInterceptor ACCEPT_ENCODING =
+      new HttpRequestInterceptor() {
+    public void process(HttpRequest request, HttpContext context)
+        throws HttpException, IOException {
+      if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+        request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP + ", "
+            + ENCODING_DEFLATE);
+      }
+    }
+  };
+
+  /**
+   * Returns an interceptor that decodes compressed entities and reports the
+   * byte counts to listener (which may be null) once each body is finished.
+   */
+  static HttpResponseInterceptor createDecoder(
+      final TwitterApi.TransferListener listener) {
+    return new HttpResponseInterceptor() {
+      public void process(HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        HttpEntity entity = response.getEntity();
+
+        if (entity == null) {
+          return;
+        }
+
+        response.setEntity(new DecodingEntity(entity, getUrl(context),
+            listener));
+      }
+    };
+  }
+
+  private static String getUrl(HttpContext context) {
+    HttpHost host = (HttpHost) context
+        .getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+    HttpRequest request = (HttpRequest) context
+        .getAttribute(ExecutionContext.HTTP_REQUEST);
+    String uri = request == null ? "" : request.getRequestLine().getUri();
+
+    if (host == null || uri.startsWith("http")) {
+      return uri;
+    }
+
+    return host.toURI() + uri;
+  }
+
+  private static class DecodingEntity extends HttpEntityWrapper {
+    private final String mUrl;
+    private final String mEncoding;
+    private final TwitterApi.TransferListener mListener;
+
+    private CountingInputStream mWireStream;
+    private CountingInputStream mContentStream;
+    private boolean mReported = false;
+
+    DecodingEntity(HttpEntity entity, String url,
+        TwitterApi.TransferListener listener) {
+      super(entity);
+
+      Header header = entity.getContentEncoding();
+      mEncoding = header == null ? null : header.getValue().trim()
+          .toLowerCase();
+      mUrl = url;
+      mListener = listener;
+    }
+
+    private boolean isCompressed() {
+      return ENCODING_GZIP.equals(mEncoding)
+          || ENCODING_DEFLATE.equals(mEncoding);
+    }
+
+    @Override
+    public synchronized InputStream getContent() throws IOException {
+      if (mContentStream != null) {
+        return mContentStream;
+      }
+
+      mWireStream = new CountingInputStream(wrappedEntity.getContent(), null);
+
+      InputStream decoded;
+
+      if (ENCODING_GZIP.equals(mEncoding)) {
+        decoded = new GZIPInputStream(mWireStream, INFLATE_BUFFER_SIZE);
+      } else if (ENCODING_DEFLATE.equals(mEncoding)) {
+        decoded = createInflaterStream(mWireStream);
+      } else {
+        decoded = mWireStream;
+      }
+
+      mContentStream = new CountingInputStream(decoded, this);
+
+      return mContentStream;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      // Once decoded, the content is no longer encoded.
+      return isCompressed() ? null : super.getContentEncoding();
+    }
+
+    @Override
+    public long getContentLength() {
+      return isCompressed() ? -1 : super.getContentLength();
+    }
+
+    // The wrapped entity's consumeContent() would read the rest behind the
+    // counting streams' backs and leave the decoder open. Instead the rest
+    // is read off the wire here, without decoding it, and the decoder is
+    // closed so that its native memory is freed now.
+    @Override
+    public void consumeContent() throws IOException {
+      CountingInputStream wire;
+      CountingInputStream content;
+
+      synchronized (this) {
+        if (mWireStream == null) {
+          // Never read, so there is no decoder to close.
+          mWireStream = new CountingInputStream(wrappedEntity.getContent(),
+              null);
+        }
+
+        wire = mWireStream;
+        content = mContentStream;
+      }
+
+      if (content != null && content.isClosed()) {
+        return;
+      }
+
+      try {
+        byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+
+        while (wire.read(buffer) != -1) {
+          // Counted by the stream.
+        }
+      } finally {
+        if (content != null) {
+          // Closes the decoder and the wire stream, and reports the counts.
+          content.close();
+        } else {
+          wire.close();
+          report();
+        }
+      }
+    }
+
+    synchronized void report() {
+      if (mReported || mWireStream == null) {
+        return;
+      }
+
+      mReported = true;
+
+      long wireBytes = mWireStream.getCount();
+      long contentBytes = mContentStream == null ? 0 : mContentStream
+          .getCount();
+
+      Log.d(TAG, mUrl + ": " + wireBytes + " bytes received, " + contentBytes
+          + " bytes decoded (" + (mEncoding == null ? "identity" : mEncoding)
+          + ").");
+
+      if (mListener != null) {
+        mListener.onTransferComplete(mUrl, wireBytes, contentBytes);
+      }
+    }
+  }
+
+  // "deflate" is supposed to be zlib wrapped but some servers send a raw
+  // deflate stream. Peek at the header to tell them apart.
+  private static InputStream createInflaterStream(InputStream in)
+      throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    byte[] header = new byte[2];
+    int read = 0;
+
+    while (read < 2) {
+      int n = pushback.read(header, read, 2 - read);
+
+      if (n == -1) {
+        break;
+      }
+
+      read += n;
+    }
+
+    if (read > 0) {
+      pushback.unread(header, 0, read);
+    }
+
+    boolean zlib = read == 2 && (header[0] & 0x0f) == 8
+        && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+
+    return new InflaterInputStream(pushback, new Inflater(!zlib),
+        INFLATE_BUFFER_SIZE);
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private final DecodingEntity mOwner;
+    private long mCount = 0;
+    private boolean mIsClosed = false;
+
+    CountingInputStream(InputStream in, DecodingEntity owner) {
+      super(in);
+
+      mOwner = owner;
+    }
+
+    synchronized long getCount() {
+      return mCount;
+    }
+
+    synchronized boolean isClosed() {
+      return mIsClosed;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+
+      if (b == -1) {
+        onEnd();
+      } else {
+        synchronized (this) {
+          ++mCount;
+        }
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+
+      if (n == -1) {
+        onEnd();
+      } else {
+        synchronized (this) {
+          mCount += n;
+        }
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+
+      synchronized (this) {
+        mCount += skipped;
+      }
+
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (this) {
+        mIsClosed = true;
+      }
+
+      try {
+        super.close();
+      } finally {
+        onEnd();
+      }
+    }
+
+    private void onEnd() {
+      if (mOwner != null) {
+        mOwner.report();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Least recently used cache of files in one directory, capped by total
+ * size. What is in it, how big each entry is and the order of last access
+ * are kept in an append-only journal, so opening the cache reads one file
+ * instead of listing the directory. Over the cap, the oldest entries are
+ * deleted on a background thread, a few at a time as puts push it over.
+ *
+ * Keys become file names and must be safe as such, e.g. MD5 hex strings.
+ * An entry is written to "key.tmp" and renamed into place on commit.
+ *
+ * Journal lines are "DIRTY key" when an edit starts, then "PUT key size"
+ * once it is committed or "REMOVE key" if it is aborted, plus "READ key".
+ * A DIRTY line left without either means the app died mid-write, and the
+ * entry and its temp file are deleted when the cache is next opened. The
+ * journal is rewritten from memory once it holds many more lines than
+ * entries.
+ *
+ * The journal is read on a background thread. Until it has been, the other
+ * methods wait for it.
+ */
+class DiskLruCache {
+  private static final String TAG = "DiskLruCache";
+
+  private static final String JOURNAL = "journal";
+  private static final String JOURNAL_TMP = "journal.tmp";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private static final String DIRTY = "DIRTY";
+  private static final String PUT = "PUT";
+  private static final String READ = "READ";
+  private static final String REMOVE = "REMOVE";
+
+  // Don't bother compacting a small journal.
+  private static final int MIN_COMPACT_LINES = 1000;
+
+  private final File mDirectory;
+  private final File mJournalFile;
+  private long mMaxBytes;
+  private boolean mIsOpen = false;
+  private boolean mIsNew = false;
+
+  // Access order, so iteration starts at the least recently used.
+  private final LinkedHashMap<String, Long> mEntries =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long mBytes = 0;
+  private int mJournalLines = 0;
+  private Writer mJournal;
+  // Keys with an editor open. One at a time, since they share a temp file.
+  private final HashSet<String> mEditing = new HashSet<String>();
+
+  // Opens the cache and then trims it, off the caller's thread.
+  private final ExecutorService mExecutor = Executors
+      .newSingleThreadExecutor();
+  private boolean mIsTrimScheduled = false;
+
+  private long mEvictionCount = 0;
+
+  DiskLruCache(File directory, long maxBytes) {
+    mDirectory = directory;
+    mJournalFile = new File(directory, JOURNAL);
+    mMaxBytes = maxBytes;
+
+    mExecutor.execute(new Runnable() {
+      public void run() {
+        open();
+      }
+    });
+  }
+
+  private synchronized void open() {
+    try {
+      openJournal();
+    } finally {
+      mIsOpen = true;
+      notifyAll();
+    }
+  }
+
+  // Caller must hold the lock.
+  private void awaitOpen() {
+    boolean isInterrupted = false;
+
+    while (!mIsOpen) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Reading the journal doesn't take long. Finish waiting.
+        isInterrupted = true;
+      }
+    }
+
+    if (isInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void openJournal() {
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      Log.w(TAG, "Could not create " + mDirectory);
+    }
+
+    // Left by a rewrite cut short.
+    new File(mDirectory, JOURNAL_TMP).delete();
+
+    boolean hasDirty = false;
+
+    if (mJournalFile.exists()) {
+      try {
+        hasDirty = readJournal();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not read journal, starting over.", e);
+        deleteContents();
+      }
+    } else {
+      // Nothing to go by, so whatever is there is unaccounted for.
+      deleteContents();
+      mIsNew = true;
+    }
+
+    try {
+      // DIRTY lines that were dealt with must not outlive this open.
+      if (mIsNew || hasDirty || mJournalLines > MIN_COMPACT_LINES) {
+        rewriteJournal();
+      } else {
+        mJournal = new BufferedWriter(new FileWriter(mJournalFile, true));
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not open journal.", e);
+    }
+
+    scheduleTrim();
+  }
+
+  // Whether there was no journal, e.g. on first run or after the system
+  // cleared the directory.
+  synchronized boolean isNew() {
+    awaitOpen();
+    return mIsNew;
+  }
+
+  // Returns whether any edits were left unfinished, after deleting them.
+  private boolean readJournal() throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(mJournalFile));
+    HashSet<String> dirty = new HashSet<String>();
+
+    try {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        ++mJournalLines;
+
+        String[] parts = line.split(" ");
+
+        if (parts.length == 3 && PUT.equals(parts[0])) {
+          long size;
+
+          try {
+            size = Long.parseLong(parts[2]);
+          } catch (NumberFormatException e) {
+            throw new IOException("Bad journal line: " + line);
+          }
+
+          Long previous = mEntries.put(parts[1], size);
+          mBytes += size - (previous == null ? 0 : previous);
+          dirty.remove(parts[1]);
+        } else if (parts.length == 2 && DIRTY.equals(parts[0])) {
+          dirty.add(parts[1]);
+        } else if (parts.length == 2 && READ.equals(parts[0])) {
+          mEntries.get(parts[1]);
+        } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+          Long previous = mEntries.remove(parts[1]);
+
+          if (previous != null) {
+            mBytes -= previous;
+          }
+
+          dirty.remove(parts[1]);
+        } else if (line.length() > 0) {
+          // Most likely a line cut short by a crash. Only the last line
+          // can be.
+          Log.w(TAG, "Ignoring journal line: " + line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    // The rename may or may not have happened, so neither the file nor the
+    // size on record can be trusted.
+    for (String key : dirty) {
+      Log.i(TAG, "Deleting unfinished entry: " + key);
+      new File(mDirectory, key + TMP_SUFFIX).delete();
+      new File(mDirectory, key).delete();
+
+      Long previous = mEntries.remove(key);
+
+      if (previous != null) {
+        mBytes -= previous;
+      }
+    }
+
+    return !dirty.isEmpty();
+  }
+
+  // Caller must hold the lock.
+  private void rewriteJournal() throws IOException {
+    if (mJournal != null) {
+      mJournal.close();
+    }
+
+    File tmp = new File(mDirectory, JOURNAL_TMP);
+    Writer writer = new BufferedWriter(new FileWriter(tmp));
+
+    try {
+      for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+        writer.write(PUT + " " + entry.getKey() + " " + entry.getValue()
+            + "\n");
+      }
+
+      // Edits still in progress must survive the rewrite.
+      for (String key : mEditing) {
+        writer.write(DIRTY + " " + key + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+
+    if (!tmp.renameTo(mJournalFile)) {
+      throw new IOException("Could not replace journal.");
+    }
+
+    mJournalLines = mEntries.size() + mEditing.size();
+    mJournal = new BufferedWriter(new FileWriter(mJournalFile, true));
+  }
+
+  // Caller must hold the lock.
+  private void appendJournal(String line) {
+    if (mJournal == null) {
+      return;
+    }
+
+    try {
+      mJournal.write(line);
+      mJournal.write('\n');
+      mJournal.flush();
+      ++mJournalLines;
+
+      if (mJournalLines > MIN_COMPACT_LINES
+          && mJournalLines > 2 * mEntries.size()) {
+        rewriteJournal();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write journal.", e);
+    }
+  }
+
+  private void deleteContents() {
+    File[] files = mDirectory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    mEntries.clear();
+    mBytes = 0;
+    mJournalLines = 0;
+  }
+
+  /**
+   * Returns the file for key and marks it as used, or null if there is
+   * none. The file may still be deleted by eviction while it is being
+   * read; readers should treat that like a miss.
+   */
+  synchronized File get(String key) {
+    awaitOpen();
+
+    if (mEntries.get(key) == null) {
+      return null;
+    }
+
+    File file = new File(mDirectory, key);
+
+    if (!file.exists()) {
+      // Deleted behind our back.
+      mBytes -= mEntries.remove(key);
+      appendJournal(REMOVE + " " + key);
+
+      return null;
+    }
+
+    appendJournal(READ + " " + key);
+
+    return file;
+  }
+
+  synchronized boolean contains(String key) {
+    awaitOpen();
+    return mEntries.containsKey(key);
+  }
+
+  /**
+   * Starts writing key. Nothing is visible to readers until the editor is
+   * committed, which replaces any previous entry in one rename. Returns
+   * null if key is already being written.
+   */
+  synchronized Editor edit(String key) throws IOException {
+    awaitOpen();
+
+    if (mEditing.contains(key)) {
+      return null;
+    }
+
+    Editor editor = new Editor(key);
+    mEditing.add(key);
+    appendJournal(DIRTY + " " + key);
+
+    return editor;
+  }
+
+  // Caller must hold the lock. Records how an edit ended.
+  private void endEdit(String key) {
+    mEditing.remove(key);
+
+    Long size = mEntries.get(key);
+
+    if (size != null) {
+      appendJournal(PUT + " " + key + " " + size);
+    } else {
+      appendJournal(REMOVE + " " + key);
+    }
+  }
+
+  class Editor {
+    private final String mKey;
+    private final File mTmpFile;
+    private final OutputStream mOut;
+    private boolean mIsDone = false;
+
+    private Editor(String key) throws IOException {
+      mKey = key;
+      mTmpFile = new File(mDirectory, key + TMP_SUFFIX);
+      mOut = new FileOutputStream(mTmpFile);
+    }
+
+    OutputStream getOutputStream() {
+      return mOut;
+    }
+
+    void commit() throws IOException {
+      if (mIsDone) {
+        return;
+      }
+
+      mIsDone = true;
+
+      try {
+        mOut.close();
+      } catch (IOException e) {
+        discard();
+        throw e;
+      }
+
+      long size = mTmpFile.length();
+
+      synchronized (DiskLruCache.this) {
+        if (!mTmpFile.renameTo(new File(mDirectory, mKey))) {
+          mTmpFile.delete();
+          endEdit(mKey);
+          throw new IOException("Could not rename " + mTmpFile);
+        }
+
+        Long previous = mEntries.put(mKey, size);
+        mBytes += size - (previous == null ? 0 : previous);
+        endEdit(mKey);
+
+        scheduleTrim();
+      }
+    }
+
+    void abort() {
+      if (mIsDone) {
+        return;
+      }
+
+      mIsDone = true;
+
+      try {
+        mOut.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+
+      discard();
+    }
+
+    private void discard() {
+      synchronized (DiskLruCache.this) {
+        mTmpFile.delete();
+        endEdit(mKey);
+      }
+    }
+  }
+
+  synchronized void remove(String key) {
+    awaitOpen();
+
+    Long previous = mEntries.remove(key);
+
+    if (previous != null) {
+      mBytes -= previous;
+      new File(mDirectory, key).delete();
+      appendJournal(REMOVE + " " + key);
+    }
+  }
+
+  synchronized void clear() {
+    awaitOpen();
+
+    if (mJournal != null) {
+      try {
+        mJournal.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+
+      mJournal = null;
+    }
+
+    deleteContents();
+
+    try {
+      rewriteJournal();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not open journal.", e);
+    }
+  }
+
+  synchronized void setMaxSize(long maxBytes) {
+    mMaxBytes = maxBytes;
+    scheduleTrim();
+  }
+
+  synchronized long getMaxSize() {
+    return mMaxBytes;
+  }
+
+  synchronized long getSize() {
+    awaitOpen();
+    return mBytes;
+  }
+
+  synchronized int getCount() {
+    awaitOpen();
+    return mEntries.size();
+  }
+
+  synchronized long getEvictionCount() {
+    return mEvictionCount;
+  }
+
+  // Caller must hold the lock.
+  private void scheduleTrim() {
+    if (mBytes <= mMaxBytes || mIsTrimScheduled) {
+      return;
+    }
+
+    mIsTrimScheduled = true;
+
+    mExecutor.execute(new Runnable() {
+      public void run() {
+        trim();
+      }
+    });
+  }
+
+  // Deletes the least recently used files until the cache fits.
+  private synchronized void trim() {
+    mIsTrimScheduled = false;
+
+    int evicted = 0;
+    Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+
+    while (mBytes > mMaxBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      mBytes -= eldest.getValue();
+      String key = eldest.getKey();
+      it.remove();
+      new File(mDirectory, key).delete();
+      ++evicted;
+
+      // May rewrite the journal, which iterates the entries.
+      appendJournal(REMOVE + " " + key);
+    }
+
+    if (evicted > 0) {
+      Log.i(TAG, "Evicted " + evicted + " files.");
+      mEvictionCount += evicted;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    awaitOpen();
+    return "bytes=" + mBytes + "/" + mMaxBytes + " count=" + mEntries.size()
+        + " evictions=" + mEvictionCount;
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.dart.android.twitter;
 
+import java.io.IOException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -27,4 +29,45 @@ public class Dm extends Message {
     return dm;
   }
 
+  // Like Tweet.create(JsonPullParser, User), only the fields we keep are
+  // decoded; the other party's profile is skipped.
+  public static Dm create(JsonPullParser parser, boolean isSent)
+      throws IOException {
+    Dm dm = new Dm();
+    dm.isSent = isSent;
+
+    String userKey = isSent ? "recipient" : "sender";
+    User user = null;
+
+    parser.beginObject();
+
+    while (parser.hasNext()) {
+      String name = parser.nextName();
+
+      if ("id".equals(name)) {
+        dm.id = parser.nextLong() + "";
+      } else if ("text".equals(name)) {
+        dm.text = Utils.decodeTwitterJson(parser.nextString());
+      } else if ("created_at".equals(name)) {
+        dm.createdAt = Utils.parseDateTime(parser.nextString());
+      } else if (userKey.equals(name)) {
+        user = User.create(parser);
+      } else {
+        parser.skipValue();
+      }
+    }
+
+    parser.endObject();
+
+    if (dm.id == null || dm.text == null || user == null) {
+      throw new IOException("Could not parse JSON.");
+    }
+
+    dm.screenName = user.screenName;
+    dm.userId = user.id;
+    dm.profileImageUrl = user.profileImageUrl;
+
+    return dm;
+  }
+
 }
\ No newline at end of file
@@ -5,10 +5,6 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashSet;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -234,33 +230,41 @@ public class DmActivity extends BaseActivity {
     mTweetList.setSelection(0);
   }
 
-  private void enableEntry() {
-    mToEdit.setEnabled(true);
-    mTweetEdit.setEnabled(true);
-    mSendButton.setEnabled(true);
+  private enum TaskResult {
+    OK, IO_ERROR, AUTH_ERROR, CANCELLED, NOT_FOLLOWED_ERROR, FAILED
   }
 
-  private void disableEntry() {
-    mToEdit.setEnabled(false);
-    mTweetEdit.setEnabled(false);
-    mSendButton.setEnabled(false);
-  }
+  private void doSend() {
+    String to = mToEdit.getText().toString();
+    String status = mTweetEdit.getText().toString();
 
-  private enum TaskResult {
-    OK, IO_ERROR, AUTH_ERROR, CANCELLED, NOT_FOLLOWED_ERROR
+    if (Utils.isEmpty(status) || Utils.isEmpty(to)) {
+      return;
+    }
+
+    // Show it right away. It goes out in the background.
+    Outbox.queueDm(getDb(), to, status);
+    mToEdit.setText("");
+    mTweetEdit.setText("");
+    draw();
+    goTop();
+
+    doDrainOutbox();
   }
 
-  private void doSend() {
-    if (mSendTask != null && mSendTask.getStatus() == UserTask.Status.RUNNING) {
-      Log.w(TAG, "Already sending.");
-    } else {
-      String to = mToEdit.getText().toString();
-      String status = mTweetEdit.getText().toString();
+  // Set when something is queued while a drain is running, which may have
+  // looked at the table already. The drain is run again when it finishes.
+  private boolean mIsDrainPending = false;
 
-      if (!Utils.isEmpty(status) && !Utils.isEmpty(to)) {
-        mSendTask = new SendTask().execute();
-      }
+  private void doDrainOutbox() {
+    if (mSendTask != null && mSendTask.getStatus() == UserTask.Status.RUNNING) {
+      Log.i(TAG, "Already sending. Draining again afterwards.");
+      mIsDrainPending = true;
+      return;
     }
+
+    mIsDrainPending = false;
+    mSendTask = new SendTask().execute();
   }
 
   private void doRetrieve() {
@@ -291,58 +295,30 @@ public class DmActivity extends BaseActivity {
 
     @Override
     public TaskResult doInBackground(Void... params) {
-      JSONArray jsonArray;
-
-      ArrayList<Dm> dms = new ArrayList<Dm>();
+      final ArrayList<Dm> dms = new ArrayList<Dm>();
 
       TwitterDbAdapter db = getDb();
       TwitterApi api = getApi();
       ImageManager imageManager = getImageManager();
 
-      long maxId = db.fetchMaxDmId(false);
+      final HashSet<String> imageUrls = new HashSet<String>();
 
-      HashSet<String> imageUrls = new HashSet<String>();
-
-      try {
-        jsonArray = api.getDmsSinceId(maxId, false);
-      } catch (IOException e) {
-        Log.e(TAG, e.getMessage(), e);
-        return TaskResult.IO_ERROR;
-      } catch (AuthException e) {
-        Log.i(TAG, "Invalid authorization.");
-        return TaskResult.AUTH_ERROR;
-      } catch (ApiException e) {
-        Log.e(TAG, e.getMessage(), e);
-        return TaskResult.IO_ERROR;
-      }
-
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return TaskResult.CANCELLED;
-        }
-
-        Dm dm;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          dm = Dm.create(jsonObject, false);
+      TwitterApi.ItemHandler<Dm> handler = new TwitterApi.ItemHandler<Dm>() {
+        public boolean handle(Dm dm) {
           dms.add(dm);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return TaskResult.IO_ERROR;
+          imageUrls.add(dm.profileImageUrl);
+          return !isCancelled();
         }
+      };
 
-        imageUrls.add(dm.profileImageUrl);
+      try {
+        api.getDmsSinceId(db.fetchMaxDmId(false), false, handler);
 
         if (isCancelled()) {
           return TaskResult.CANCELLED;
         }
-      }
-
-      maxId = db.fetchMaxDmId(true);
 
-      try {
-        jsonArray = api.getDmsSinceId(maxId, true);
+        api.getDmsSinceId(db.fetchMaxDmId(true), true, handler);
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return TaskResult.IO_ERROR;
@@ -354,27 +330,8 @@ public class DmActivity extends BaseActivity {
         return TaskResult.IO_ERROR;
       }
 
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return TaskResult.CANCELLED;
-        }
-
-        Dm dm;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          dm = Dm.create(jsonObject, true);
-          dms.add(dm);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return TaskResult.IO_ERROR;
-        }
-
-        imageUrls.add(dm.profileImageUrl);
-
-        if (isCancelled()) {
-          return TaskResult.CANCELLED;
-        }
+      if (isCancelled()) {
+        return TaskResult.CANCELLED;
       }
 
       db.addDms(dms, false);
@@ -427,6 +384,8 @@ public class DmActivity extends BaseActivity {
       super(context, cursor);
 
       mInflater = LayoutInflater.from(context);
+      mAvatarLoader = new AvatarLoader(TwitterApplication.mImageManager,
+          R.drawable.blank_profile);
 
       mUserTextColumn = cursor.getColumnIndexOrThrow(TwitterDbAdapter.KEY_USER);
       mTextColumn = cursor.getColumnIndexOrThrow(TwitterDbAdapter.KEY_TEXT);
@@ -439,6 +398,7 @@ public class DmActivity extends BaseActivity {
     }
 
     private LayoutInflater mInflater;
+    private AvatarLoader mAvatarLoader;
 
     private int mUserTextColumn;
     private int mTextColumn;
@@ -482,11 +442,8 @@ public class DmActivity extends BaseActivity {
 
       Utils.setTweetText(holder.tweetText, cursor.getString(mTextColumn));
 
-      String profileImageUrl = cursor.getString(mProfileImageUrlColumn);
-
-      if (!Utils.isEmpty(profileImageUrl)) {
-        holder.profileImage.setImageBitmap(TwitterApplication.mImageManager.get(profileImageUrl));
-      }
+      mAvatarLoader.bind(holder.profileImage, cursor
+          .getString(mProfileImageUrlColumn));
 
       try {
         holder.metaText.setText(Utils
@@ -506,42 +463,23 @@ public class DmActivity extends BaseActivity {
   private class SendTask extends UserTask<Void, Void, TaskResult> {
     @Override
     public void onPreExecute() {
-      disableEntry();
       updateProgress("Sending DM...");
     }
 
     @Override
     public TaskResult doInBackground(Void... params) {
-      try {
-        String user = mToEdit.getText().toString();
-        String text = mTweetEdit.getText().toString();
-
-        JSONObject jsonObject = getApi().sendDirectMessage(user, text);
-        Dm dm = Dm.create(jsonObject, true);
-
-        if (!Utils.isEmpty(dm.profileImageUrl)) {
-          // Fetch image to cache.
-          try {
-            getImageManager().put(dm.profileImageUrl);
-          } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-          }
-        }
+      Outbox.Result result = Outbox.drain(getApi(), getDb(),
+          getImageManager());
 
-        getDb().createDm(dm, false);
-      } catch (IOException e) {
-        Log.e(TAG, e.getMessage(), e);
+      if (result == Outbox.Result.IO_ERROR) {
         return TaskResult.IO_ERROR;
-      } catch (AuthException e) {
-        Log.i(TAG, "Invalid authorization.");
+      } else if (result == Outbox.Result.AUTH_ERROR) {
         return TaskResult.AUTH_ERROR;
-      } catch (JSONException e) {
-        Log.w(TAG, "Could not parse JSON after sending update.");
-        return TaskResult.IO_ERROR;
-      } catch (ApiException e) {
-        Log.i(TAG, e.getMessage());
+      } else if (result == Outbox.Result.REJECTED) {
         // TODO: check is this is actually the case.
         return TaskResult.NOT_FOLLOWED_ERROR;
+      } else if (result == Outbox.Result.FAILED) {
+        return TaskResult.FAILED;
       }
 
       return TaskResult.OK;
@@ -558,19 +496,23 @@ public class DmActivity extends BaseActivity {
 
       if (result == TaskResult.AUTH_ERROR) {
         logout();
+        return;
       } else if (result == TaskResult.OK) {
-        mToEdit.setText("");
-        mTweetEdit.setText("");
         updateProgress("");
-        enableEntry();
-        draw();
-        goTop();
       } else if (result == TaskResult.NOT_FOLLOWED_ERROR) {
         updateProgress("Unable to send. Is the person following you?");
-        enableEntry();
       } else if (result == TaskResult.IO_ERROR) {
-        updateProgress("Unable to send");
-        enableEntry();
+        updateProgress("Unable to send. Will retry.");
+      } else if (result == TaskResult.FAILED) {
+        updateProgress("Unable to send. Gave up.");
+      }
+
+      draw();
+
+      if (mIsDrainPending) {
+        // This task still counts as running, so start the next directly.
+        mIsDrainPending = false;
+        mSendTask = new SendTask().execute();
       }
     }
   }
@@ -688,7 +630,15 @@ public class DmActivity extends BaseActivity {
     case CONTEXT_DELETE_ID:
       int idIndex = cursor.getColumnIndexOrThrow(TwitterDbAdapter.KEY_ID);
       long id = cursor.getLong(idIndex);
-      doDestroy(id);
+
+      if (id < 0) {
+        // Still in the outbox, so there is nothing to delete remotely. A
+        // running drain checks the row is still there before sending it.
+        getDb().deleteOutgoing(-id);
+        draw();
+      } else {
+        doDestroy(id);
+      }
 
       return true;
     default:
@@ -715,24 +665,25 @@ public class DmActivity extends BaseActivity {
 
     @Override
     public TaskResult doInBackground(Long... params) {
-      Long id = params[0];
+      ArrayList<Long> ids = new ArrayList<Long>();
 
-      try {
-        JSONObject json = getApi().destroyDirectMessage(id);
-        Dm.create(json, false);
-        getDb().deleteDm(id);
-      } catch (IOException e) {
-        Log.e(TAG, e.getMessage(), e);
-        return TaskResult.IO_ERROR;
-      } catch (AuthException e) {
-        Log.i(TAG, "Invalid authorization.");
+      for (Long id : params) {
+        ids.add(id);
+      }
+
+      // Remove them from the list straight away. The server catches up,
+      // along with any deletes still pending from before.
+      Outbox.queueDmDeletes(getDb(), ids);
+      publishProgress();
+
+      Outbox.Result result = Outbox.drainDeletes(getApi(), getDb());
+
+      if (result == Outbox.Result.AUTH_ERROR) {
         return TaskResult.AUTH_ERROR;
-      } catch (JSONException e) {
-        Log.e(TAG, e.getMessage(), e);
-        return TaskResult.IO_ERROR;
-      } catch (ApiException e) {
-        Log.e(TAG, e.getMessage(), e);
+      } else if (result == Outbox.Result.IO_ERROR) {
         return TaskResult.IO_ERROR;
+      } else if (result == Outbox.Result.FAILED) {
+        return TaskResult.FAILED;
       }
 
       if (isCancelled()) {
@@ -742,17 +693,26 @@ public class DmActivity extends BaseActivity {
       return TaskResult.OK;
     }
 
+    @Override
+    public void onProgressUpdate(Void... progress) {
+      mAdapter.refresh();
+    }
+
     @Override
     public void onPostExecute(TaskResult result) {
       if (result == TaskResult.AUTH_ERROR) {
         logout();
+        return;
       } else if (result == TaskResult.OK) {
         mAdapter.refresh();
+        updateProgress("");
+      } else if (result == TaskResult.IO_ERROR) {
+        updateProgress("Unable to delete. Will retry.");
+      } else if (result == TaskResult.FAILED) {
+        updateProgress("Unable to delete. Gave up.");
       } else {
-        // Do nothing.
+        updateProgress("");
       }
-
-      updateProgress("");
     }
   }
 
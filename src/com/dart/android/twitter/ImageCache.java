@@ -4,5 +4,7 @@ import android.graphics.Bitmap;
 
 public interface ImageCache {
   public Bitmap get(String url);
+  // Like get(), but never reads a file. Safe on the main thread.
+  public Bitmap getCached(String url);
   public void put(String url, Bitmap bitmap);
 }
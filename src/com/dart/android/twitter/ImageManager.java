@@ -17,28 +17,40 @@
 package com.dart.android.twitter;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.HttpConnectionParams;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -51,7 +63,9 @@ public class ImageManager implements ImageCache {
 
   private Context mContext;
   // In memory cache.
-  private Map<String, SoftReference<Bitmap>> mCache;
+  private BitmapLruCache mCache;
+  // On disk, keyed by the MD5 of the URL.
+  private DiskLruCache mDiskCache;
   private HttpClient mClient;
   // MD5 hasher.
   private MessageDigest mDigest;
@@ -61,10 +75,60 @@ public class ImageManager implements ImageCache {
   private static final int CONNECTION_TIMEOUT_MS = 10 * 1000;
   private static final int SOCKET_TIMEOUT_MS = 10 * 1000;
 
-  ImageManager(Context context) {
+  // Two attempts, and a slow image is requested again after a few seconds.
+  // Image hosts don't count against the rate limit so hedging is cheap.
+  private static final int MAX_ATTEMPTS = 2;
+  private static final long RETRY_DELAY_MS = 500;
+  private static final long MAX_RETRY_DELAY_MS = 2 * 1000;
+  private static final long HEDGE_DELAY_MS = 3 * 1000;
+
+  private RetryPolicy mRetryPolicy = new RetryPolicy(MAX_ATTEMPTS,
+      RETRY_DELAY_MS, MAX_RETRY_DELAY_MS, HEDGE_DELAY_MS);
+
+  // Avatars come from a few hosts, so more threads than the pool lets
+  // through to one host would only wait for a connection.
+  private static final int PREFETCH_THREADS = PooledConnectionManager
+      .MAX_PER_ROUTE;
+  private static final int PREFETCH_KEEP_ALIVE_SECS = 30;
+
+  // How long a caller of prefetch() should be willing to wait.
+  public static final long DEFAULT_PREFETCH_TIMEOUT_MS = 20 * 1000;
+
+  // Interrupting one of its threads aborts the download.
+  private static final ThreadPoolExecutor sPrefetchExecutor =
+      new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+          PREFETCH_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), RequestScope
+              .newThreadFactory(TAG));
+
+  private static final String DISK_CACHE_DIRECTORY = "images";
+  // Avatars are a few KB each, so this holds well over a thousand.
+  private static final long DEFAULT_DISK_CACHE_BYTES = 4 * 1024 * 1024;
+
+  ImageManager(final Context context) {
     mContext = context;
-    mCache = new HashMap<String, SoftReference<Bitmap>>();
-    mClient = new DefaultHttpClient();
+    mCache = new BitmapLruCache();
+    mDiskCache = new DiskLruCache(new File(context.getCacheDir(),
+        DISK_CACHE_DIRECTORY), DEFAULT_DISK_CACHE_BYTES);
+
+    // isNew waits for the cache to open.
+    sPrefetchExecutor.execute(new Runnable() {
+      public void run() {
+        if (mDiskCache.isNew()) {
+          deleteLegacyFiles(context);
+        }
+      }
+    });
+
+    // Hedged requests run side by side, so this needs a thread safe pool.
+    PooledConnectionManager connectionManager = TwitterApi
+        .getConnectionManager();
+    DefaultHttpClient client = new DefaultHttpClient(connectionManager,
+        connectionManager.getParams());
+    // Only to count the bytes. Images are already compressed.
+    client.addResponseInterceptor(ContentEncoding.createDecoder(NetworkStats
+        .getInstance()));
+    mClient = client;
 
     try {
       mDigest = MessageDigest.getInstance("MD5");
@@ -78,6 +142,19 @@ public class ImageManager implements ImageCache {
     mContext = context;
   }
 
+  // Images used to be loose files in the files directory.
+  private static void deleteLegacyFiles(Context context) {
+    for (String file : context.fileList()) {
+      if (file.length() == 32 && file.matches("[0-9a-f]+")) {
+        context.deleteFile(file);
+      }
+    }
+  }
+
+  public void setDiskCacheSize(long maxBytes) {
+    mDiskCache.setMaxSize(maxBytes);
+  }
+
   private String getHashString(MessageDigest digest) {
     StringBuilder builder = new StringBuilder();
 
@@ -91,21 +168,29 @@ public class ImageManager implements ImageCache {
 
   // MD5 hases are used to generate filenames based off a URL.
   private String getMd5(String url) {
-    mDigest.update(url.getBytes());
+    // Images are looked up from several threads.
+    synchronized (mDigest) {
+      mDigest.update(url.getBytes());
 
-    return getHashString(mDigest);
+      return getHashString(mDigest);
+    }
   }
 
   // Looks to see if an image is in the file system.
   private Bitmap lookupFile(String url) {
-    String hashedUrl = getMd5(url);
+    File file = mDiskCache.get(getMd5(url));
+
+    if (file == null) {
+      return null;
+    }
+
     FileInputStream fis = null;
 
     try {
-      fis = mContext.openFileInput(hashedUrl);
+      fis = new FileInputStream(file);
       return BitmapFactory.decodeStream(fis);
     } catch (FileNotFoundException e) {
-      // Not there.
+      // Evicted since.
       return null;
     } finally {
       if (fis != null) {
@@ -118,36 +203,155 @@ public class ImageManager implements ImageCache {
     }
   }
 
-  public Bitmap fetchImage(String url) throws IOException {
+  public Bitmap fetchImage(final String url) throws IOException {
     Log.i(TAG, "Fetching image: " + url);
 
-    HttpGet get = new HttpGet(url);
-    HttpConnectionParams.setConnectionTimeout(get.getParams(),
-        CONNECTION_TIMEOUT_MS);
-    HttpConnectionParams.setSoTimeout(get.getParams(),
-        SOCKET_TIMEOUT_MS);
+    URI uri;
 
-    HttpResponse response;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      throw new IOException("Invalid URL.");
+    }
+
+    // Lets a cancelled task abort the download.
+    final RequestScope scope = RequestScope.open();
+    final NetworkStats.Call call = NetworkStats.getInstance().begin(url);
 
     try {
-      response = mClient.execute(get);
-    } catch (ClientProtocolException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Invalid client protocol.");
+      RetryPolicy.RequestFactory factory = new RetryPolicy.RequestFactory() {
+        public HttpUriRequest create() {
+          HttpGet get = new HttpGet(url);
+          HttpConnectionParams.setConnectionTimeout(get.getParams(),
+              CONNECTION_TIMEOUT_MS);
+          HttpConnectionParams.setSoTimeout(get.getParams(),
+              SOCKET_TIMEOUT_MS);
+          call.onAttempt(get);
+
+          return scope.add(get);
+        }
+      };
+
+      HttpResponse response;
+
+      try {
+        response = mRetryPolicy.execute(mClient, uri.getHost(), factory, true);
+      } catch (ClientProtocolException e) {
+        Log.e(TAG, e.getMessage(), e);
+        throw new IOException("Invalid client protocol.");
+      }
+
+      call.onResponse(response.getStatusLine().getStatusCode());
+
+      if (response.getStatusLine().getStatusCode() != 200) {
+        HttpEntity entity = response.getEntity();
+
+        if (entity != null) {
+          entity.consumeContent();
+        }
+
+        throw new IOException("Non OK response: " +
+            response.getStatusLine().getStatusCode());
+      }
+
+      // The bytes go to the disk cache as they are, while being decoded.
+      HttpEntity entity = response.getEntity();
+      DiskLruCache.Editor editor = edit(url);
+      TeeInputStream tee = new TeeInputStream(entity.getContent(),
+          editor == null ? null : editor.getOutputStream());
+      BufferedInputStream bis = new BufferedInputStream(tee, 8 * 1024);
+      boolean isCommitted = false;
+
+      try {
+        Bitmap bitmap = BitmapFactory.decodeStream(bis);
+
+        if (bitmap != null && editor != null) {
+          // The decoder may stop short of the end, but the file needs it all.
+          tee.drain();
+
+          if (!tee.isFailed()) {
+            commit(editor);
+            isCommitted = true;
+          }
+        }
+
+        return bitmap;
+      } finally {
+        if (editor != null && !isCommitted) {
+          editor.abort();
+        }
+
+        bis.close();
+      }
+    } catch (IOException e) {
+      call.onFailure(e, scope.isAborted());
+      throw e;
+    } finally {
+      call.onComplete();
+      scope.close();
     }
+  }
 
-    if (response.getStatusLine().getStatusCode() != 200) {
-      throw new IOException("Non OK response: " +
-          response.getStatusLine().getStatusCode());
+  /**
+   * Downloads and stores whichever of urls aren't cached yet, several at a
+   * time, and waits at most timeoutMs for them. Returns how many were
+   * fetched. Downloads still going when the time is up, or when the
+   * calling thread is interrupted, are aborted.
+   */
+  public int prefetch(Collection<String> urls, long timeoutMs)
+      throws InterruptedException {
+    long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+    ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+    for (final String url : urls) {
+      if (Utils.isEmpty(url) || contains(url)) {
+        continue;
+      }
+
+      futures.add(sPrefetchExecutor.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          try {
+            put(url);
+            return true;
+          } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return false;
+          }
+        }
+      }));
     }
 
-    HttpEntity entity = response.getEntity();
-    BufferedInputStream bis = new BufferedInputStream(entity.getContent(),
-        8 * 1024);
-    Bitmap bitmap = BitmapFactory.decodeStream(bis);
-    bis.close();
+    if (futures.isEmpty()) {
+      return 0;
+    }
 
-    return bitmap;
+    Log.i(TAG, "Prefetching " + futures.size() + " images.");
+
+    int fetched = 0;
+
+    try {
+      for (Future<Boolean> future : futures) {
+        long remaining = deadline - SystemClock.elapsedRealtime();
+
+        try {
+          if (future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS)) {
+            ++fetched;
+          }
+        } catch (ExecutionException e) {
+          Log.e(TAG, e.getMessage(), e);
+        } catch (TimeoutException e) {
+          Log.w(TAG, "Prefetch timed out.");
+          break;
+        }
+      }
+    } finally {
+      // Leaves the finished ones alone.
+      for (Future<Boolean> future : futures) {
+        future.cancel(true);
+      }
+    }
+
+    return fetched;
   }
 
   // Downloads and stores an image.
@@ -155,24 +359,21 @@ public class ImageManager implements ImageCache {
     if (contains(url)) {
       // Image already exists.
       return;
-
-      // TODO: write to file if not present.
     }
 
+    // Already written to disk by fetchImage().
     Bitmap bitmap = fetchImage(url);
 
     if (bitmap == null) {
       Log.w(TAG, "Retrieved bitmap is null.");
     } else {
-      put(url, bitmap);
+      mCache.put(url, bitmap);
     }
   }
 
   @Override
   public void put(String url, Bitmap bitmap) {
-    synchronized(this) {
-      mCache.put(url, new SoftReference<Bitmap>(bitmap));
-    }
+    mCache.put(url, bitmap);
 
     writeFile(url, bitmap);
   }
@@ -183,52 +384,134 @@ public class ImageManager implements ImageCache {
       return;
     }
 
-    String hashedUrl = getMd5(url);
+    DiskLruCache.Editor editor = edit(url);
 
-    FileOutputStream fos;
+    if (editor == null) {
+      return;
+    }
 
-    try {
-      fos = mContext.openFileOutput(hashedUrl,
-          Context.MODE_PRIVATE);
-    } catch (FileNotFoundException e) {
-      Log.w(TAG, "Error creating file.");
+    // Only for bitmaps that didn't come from fetchImage(). PNG keeps any
+    // transparency.
+    if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, editor
+        .getOutputStream())) {
+      editor.abort();
       return;
     }
 
-    Log.i(TAG, "Writing file: " + hashedUrl);
-    bitmap.compress(Bitmap.CompressFormat.JPEG, 80, fos);
+    commit(editor);
+  }
+
+  // Returns null if the file can't be created.
+  private DiskLruCache.Editor edit(String url) {
+    String hashedUrl = getMd5(url);
 
     try {
-      fos.close();
+      Log.i(TAG, "Writing file: " + hashedUrl);
+      return mDiskCache.edit(hashedUrl);
+    } catch (IOException e) {
+      Log.w(TAG, "Error creating file.");
+      return null;
+    }
+  }
+
+  private void commit(DiskLruCache.Editor editor) {
+    try {
+      editor.commit();
     } catch (IOException e) {
       Log.w(TAG, "Could not close file.");
     }
   }
 
-  public Bitmap get(String url) {
-    SoftReference<Bitmap> ref;
-    Bitmap bitmap;
+  /**
+   * Copies whatever is read through it to out. A failed write stops the
+   * copying but not the reading, so a full disk doesn't fail the download.
+   */
+  private static class TeeInputStream extends FilterInputStream {
+    private OutputStream mOut;
+    private boolean mIsFailed = false;
 
-    // Look in memory first.
-    synchronized(this) {
-      ref = mCache.get(url);
+    TeeInputStream(InputStream in, OutputStream out) {
+      super(in);
+
+      mOut = out;
     }
 
-    if (ref != null) {
-      bitmap = ref.get();
+    boolean isFailed() {
+      return mIsFailed;
+    }
 
-      if (bitmap != null) {
-        return bitmap;
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+
+      if (b != -1) {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+
+      if (n > 0) {
+        write(buffer, offset, n);
+      }
+
+      return n;
+    }
+
+    // Skipped bytes still have to be copied.
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] buffer = new byte[(int) Math.min(n, 4 * 1024)];
+      int read = read(buffer, 0, buffer.length);
+
+      return read == -1 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    // Reads the rest of the stream.
+    void drain() throws IOException {
+      byte[] buffer = new byte[4 * 1024];
+
+      while (read(buffer, 0, buffer.length) != -1) {
+        // Copied by read().
       }
     }
 
+    private void write(byte[] buffer, int offset, int length) {
+      if (mOut == null || mIsFailed) {
+        return;
+      }
+
+      try {
+        mOut.write(buffer, offset, length);
+      } catch (IOException e) {
+        Log.w(TAG, "Could not write file: " + e.getMessage());
+        mIsFailed = true;
+      }
+    }
+  }
+
+  public Bitmap get(String url) {
+    // Look in memory first.
+    Bitmap bitmap = mCache.get(url);
+
+    if (bitmap != null) {
+      return bitmap;
+    }
+
     // Now try file.
     bitmap = lookupFile(url);
 
     if (bitmap != null) {
-      synchronized(this) {
-        mCache.put(url, new SoftReference<Bitmap>(bitmap));
-      }
+      mCache.put(url, bitmap);
 
       return bitmap;
     }
@@ -237,36 +520,27 @@ public class ImageManager implements ImageCache {
     return null;
   }
 
+  public Bitmap getCached(String url) {
+    return mCache.get(url);
+  }
+
+  // Doesn't decode anything, unlike get().
   public boolean contains(String url) {
-    return get(url) != null;
+    return mCache.contains(url) || mDiskCache.contains(getMd5(url));
   }
 
   public void clear() {
-    String [] files = mContext.fileList();
-
-    for (String file : files) {
-      mContext.deleteFile(file);
-    }
-
-    synchronized(this) {
-      mCache.clear();
-    }
+    mDiskCache.clear();
+    mCache.clear();
   }
 
-  public void cleanup(HashSet<String> keepers) {
-    String [] files = mContext.fileList();
-    HashSet<String> hashedUrls = new HashSet<String>();
-
-    for (String imageUrl : keepers) {
-      hashedUrls.add(getMd5(imageUrl));
-    }
+  // Hit, miss and eviction counters of the memory cache.
+  public String getMemoryCacheStats() {
+    return mCache.toString();
+  }
 
-    for (String file : files) {
-      if (!hashedUrls.contains(file)) {
-        Log.i(TAG, "Deleting unused file: " + file);
-        mContext.deleteFile(file);
-      }
-    }
+  public String getDiskCacheStats() {
+    return mDiskCache.toString();
   }
 
 }
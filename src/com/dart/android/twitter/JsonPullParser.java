@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads JSON one token at a time from a stream.
+ * Unlike org.json, the body is never buffered into a String, so callers can
+ * handle each element of a large array as soon as it has arrived.
+ */
+public class JsonPullParser {
+  @SuppressWarnings("unused")
+  private static final String TAG = "JsonPullParser";
+
+  // Token types returned by peek().
+  public static final int BEGIN_ARRAY = 0;
+  public static final int END_ARRAY = 1;
+  public static final int BEGIN_OBJECT = 2;
+  public static final int END_OBJECT = 3;
+  public static final int NAME = 4;
+  public static final int STRING = 5;
+  public static final int NUMBER = 6;
+  public static final int BOOLEAN = 7;
+  public static final int NULL = 8;
+  public static final int END_DOCUMENT = 9;
+
+  private static final int NONE = -1;
+
+  // Where we are in the document.
+  private static final int EMPTY_ARRAY = 0;
+  private static final int NONEMPTY_ARRAY = 1;
+  private static final int EMPTY_OBJECT = 2;
+  private static final int DANGLING_NAME = 3;
+  private static final int NONEMPTY_OBJECT = 4;
+  private static final int EMPTY_DOCUMENT = 5;
+  private static final int NONEMPTY_DOCUMENT = 6;
+
+  private static final int BUFFER_SIZE = 1024;
+
+  private Reader mReader;
+  private char[] mBuffer = new char[BUFFER_SIZE];
+  private int mPos = 0;
+  private int mLimit = 0;
+
+  private int[] mStack = new int[16];
+  private int mStackSize = 0;
+
+  private int mPeeked = NONE;
+
+  private StringBuilder mBuilder = new StringBuilder();
+
+  public JsonPullParser(InputStream in) throws IOException {
+    this(new InputStreamReader(in, "UTF-8"));
+  }
+
+  public JsonPullParser(Reader reader) {
+    mReader = reader;
+    push(EMPTY_DOCUMENT);
+  }
+
+  public void close() throws IOException {
+    mReader.close();
+  }
+
+  public void beginArray() throws IOException {
+    expect(BEGIN_ARRAY);
+    push(EMPTY_ARRAY);
+  }
+
+  public void endArray() throws IOException {
+    expect(END_ARRAY);
+    --mStackSize;
+  }
+
+  public void beginObject() throws IOException {
+    expect(BEGIN_OBJECT);
+    push(EMPTY_OBJECT);
+  }
+
+  public void endObject() throws IOException {
+    expect(END_OBJECT);
+    --mStackSize;
+  }
+
+  public boolean hasNext() throws IOException {
+    int token = peek();
+    return token != END_ARRAY && token != END_OBJECT && token != END_DOCUMENT;
+  }
+
+  public String nextName() throws IOException {
+    expect(NAME);
+    return readString();
+  }
+
+  public String nextString() throws IOException {
+    int token = peek();
+
+    if (token == STRING) {
+      mPeeked = NONE;
+      return readString();
+    } else if (token == NUMBER || token == BOOLEAN) {
+      mPeeked = NONE;
+      return readLiteral();
+    }
+
+    throw syntaxError("Expected a string");
+  }
+
+  public long nextLong() throws IOException {
+    String value = nextString();
+
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      try {
+        return (long) Double.parseDouble(value);
+      } catch (NumberFormatException e2) {
+        throw syntaxError("Expected a number but was " + value);
+      }
+    }
+  }
+
+  public boolean nextBoolean() throws IOException {
+    expect(BOOLEAN);
+    return "true".equals(readLiteral());
+  }
+
+  public void nextNull() throws IOException {
+    expect(NULL);
+    readLiteral();
+  }
+
+  // Returns the next string, or null if the value is a JSON null.
+  public String nextStringOrNull() throws IOException {
+    if (peek() == NULL) {
+      nextNull();
+      return null;
+    }
+
+    return nextString();
+  }
+
+  // Skips the next value, including any nested arrays and objects,
+  // without allocating anything for it.
+  public void skipValue() throws IOException {
+    int depth = 0;
+
+    do {
+      switch (peek()) {
+      case BEGIN_ARRAY:
+        beginArray();
+        ++depth;
+        break;
+      case BEGIN_OBJECT:
+        beginObject();
+        ++depth;
+        break;
+      case END_ARRAY:
+        endArray();
+        --depth;
+        break;
+      case END_OBJECT:
+        endObject();
+        --depth;
+        break;
+      case NAME:
+      case STRING:
+        mPeeked = NONE;
+        skipString();
+        break;
+      case END_DOCUMENT:
+        throw syntaxError("Unexpected end of document");
+      default:
+        mPeeked = NONE;
+        skipLiteral();
+        break;
+      }
+    } while (depth > 0);
+  }
+
+  // Reads the next object into a JSONObject. Only that one object is held in
+  // memory, not the rest of the document.
+  public JSONObject readObject() throws IOException {
+    JSONObject object = new JSONObject();
+    beginObject();
+
+    try {
+      while (hasNext()) {
+        String name = nextName();
+        object.put(name, readValue());
+      }
+    } catch (JSONException e) {
+      throw syntaxError(e.getMessage());
+    }
+
+    endObject();
+
+    return object;
+  }
+
+  public JSONArray readArray() throws IOException {
+    JSONArray array = new JSONArray();
+    beginArray();
+
+    while (hasNext()) {
+      array.put(readValue());
+    }
+
+    endArray();
+
+    return array;
+  }
+
+  // Values are mapped the same way org.json maps them so that model code can
+  // consume either representation.
+  public Object readValue() throws IOException {
+    switch (peek()) {
+    case BEGIN_OBJECT:
+      return readObject();
+    case BEGIN_ARRAY:
+      return readArray();
+    case STRING:
+      return nextString();
+    case NUMBER:
+      String number = nextString();
+
+      try {
+        return Long.valueOf(number);
+      } catch (NumberFormatException e) {
+        try {
+          return Double.valueOf(number);
+        } catch (NumberFormatException e2) {
+          throw syntaxError("Invalid number " + number);
+        }
+      }
+    case BOOLEAN:
+      return Boolean.valueOf(nextBoolean());
+    case NULL:
+      nextNull();
+      return JSONObject.NULL;
+    default:
+      throw syntaxError("Expected a value");
+    }
+  }
+
+  public int peek() throws IOException {
+    if (mPeeked != NONE) {
+      return mPeeked;
+    }
+
+    int top = mStackSize - 1;
+    int scope = mStack[top];
+    int c;
+
+    switch (scope) {
+    case EMPTY_ARRAY:
+      mStack[top] = NONEMPTY_ARRAY;
+      break;
+    case NONEMPTY_ARRAY:
+      c = nextNonWhitespace();
+
+      if (c == ']') {
+        return mPeeked = END_ARRAY;
+      } else if (c != ',') {
+        throw syntaxError("Expected ',' or ']'");
+      }
+
+      break;
+    case EMPTY_OBJECT:
+    case NONEMPTY_OBJECT:
+      mStack[top] = DANGLING_NAME;
+      c = nextNonWhitespace();
+
+      if (c == '}') {
+        return mPeeked = END_OBJECT;
+      }
+
+      if (scope == NONEMPTY_OBJECT) {
+        if (c != ',') {
+          throw syntaxError("Expected ',' or '}'");
+        }
+
+        c = nextNonWhitespace();
+      }
+
+      if (c != '"') {
+        throw syntaxError("Expected a name");
+      }
+
+      return mPeeked = NAME;
+    case DANGLING_NAME:
+      mStack[top] = NONEMPTY_OBJECT;
+
+      if (nextNonWhitespace() != ':') {
+        throw syntaxError("Expected ':'");
+      }
+
+      break;
+    case EMPTY_DOCUMENT:
+      mStack[top] = NONEMPTY_DOCUMENT;
+      break;
+    case NONEMPTY_DOCUMENT:
+      if (nextNonWhitespaceOrEnd() == -1) {
+        return mPeeked = END_DOCUMENT;
+      }
+
+      throw syntaxError("Expected end of document");
+    }
+
+    c = nextNonWhitespace();
+
+    switch (c) {
+    case ']':
+      if (scope == EMPTY_ARRAY) {
+        return mPeeked = END_ARRAY;
+      }
+
+      throw syntaxError("Unexpected ']'");
+    case '[':
+      return mPeeked = BEGIN_ARRAY;
+    case '{':
+      return mPeeked = BEGIN_OBJECT;
+    case '"':
+      return mPeeked = STRING;
+    case 't':
+    case 'f':
+      // Leave the literal in the buffer for readLiteral().
+      --mPos;
+      return mPeeked = BOOLEAN;
+    case 'n':
+      --mPos;
+      return mPeeked = NULL;
+    default:
+      if (c == '-' || (c >= '0' && c <= '9')) {
+        --mPos;
+        return mPeeked = NUMBER;
+      }
+
+      throw syntaxError("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private void expect(int token) throws IOException {
+    if (peek() != token) {
+      throw syntaxError("Unexpected token " + mPeeked);
+    }
+
+    mPeeked = NONE;
+  }
+
+  private void push(int scope) {
+    if (mStackSize == mStack.length) {
+      int[] stack = new int[mStackSize * 2];
+      System.arraycopy(mStack, 0, stack, 0, mStackSize);
+      mStack = stack;
+    }
+
+    mStack[mStackSize++] = scope;
+  }
+
+  private boolean fill() throws IOException {
+    mPos = 0;
+    mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+
+    if (mLimit <= 0) {
+      mLimit = 0;
+      return false;
+    }
+
+    return true;
+  }
+
+  private int nextChar() throws IOException {
+    if (mPos == mLimit && !fill()) {
+      throw syntaxError("Unexpected end of input");
+    }
+
+    return mBuffer[mPos++];
+  }
+
+  private int nextNonWhitespaceOrEnd() throws IOException {
+    while (mPos < mLimit || fill()) {
+      char c = mBuffer[mPos++];
+
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+    }
+
+    return -1;
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    int c = nextNonWhitespaceOrEnd();
+
+    if (c == -1) {
+      throw syntaxError("Unexpected end of input");
+    }
+
+    return c;
+  }
+
+  // Assumes the opening quote has been consumed.
+  private String readString() throws IOException {
+    mBuilder.setLength(0);
+
+    while (true) {
+      int start = mPos;
+
+      while (mPos < mLimit) {
+        char c = mBuffer[mPos++];
+
+        if (c == '"') {
+          mBuilder.append(mBuffer, start, mPos - start - 1);
+          return mBuilder.toString();
+        } else if (c == '\\') {
+          mBuilder.append(mBuffer, start, mPos - start - 1);
+          mBuilder.append(readEscape());
+          start = mPos;
+        }
+      }
+
+      mBuilder.append(mBuffer, start, mPos - start);
+
+      if (!fill()) {
+        throw syntaxError("Unterminated string");
+      }
+    }
+  }
+
+  private void skipString() throws IOException {
+    while (true) {
+      int c = nextChar();
+
+      if (c == '"') {
+        return;
+      } else if (c == '\\') {
+        readEscape();
+      }
+    }
+  }
+
+  private char readEscape() throws IOException {
+    int c = nextChar();
+
+    switch (c) {
+    case 'u':
+      int value = 0;
+
+      for (int i = 0; i < 4; ++i) {
+        int digit = Character.digit(nextChar(), 16);
+
+        if (digit == -1) {
+          throw syntaxError("Invalid unicode escape");
+        }
+
+        value = (value << 4) | digit;
+      }
+
+      return (char) value;
+    case 't':
+      return '\t';
+    case 'b':
+      return '\b';
+    case 'n':
+      return '\n';
+    case 'r':
+      return '\r';
+    case 'f':
+      return '\f';
+    default:
+      // Covers \" \\ and \/.
+      return (char) c;
+    }
+  }
+
+  private static boolean isLiteralEnd(char c) {
+    return c == ',' || c == ']' || c == '}' || c == ':' || c == ' '
+        || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private String readLiteral() throws IOException {
+    mBuilder.setLength(0);
+
+    while (mPos < mLimit || fill()) {
+      char c = mBuffer[mPos];
+
+      if (isLiteralEnd(c)) {
+        break;
+      }
+
+      mBuilder.append(c);
+      ++mPos;
+    }
+
+    if (mBuilder.length() == 0) {
+      throw syntaxError("Expected a literal");
+    }
+
+    return mBuilder.toString();
+  }
+
+  private void skipLiteral() throws IOException {
+    while (mPos < mLimit || fill()) {
+      if (isLiteralEnd(mBuffer[mPos])) {
+        return;
+      }
+
+      ++mPos;
+    }
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException("Could not parse JSON: " + message);
+  }
+
+}
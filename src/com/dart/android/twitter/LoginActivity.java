@@ -78,6 +78,13 @@ public class LoginActivity extends Activity {
 
     mApi = new TwitterApi();
 
+    // The user takes a while to type, so have the HTTPS connection for
+    // verifying the credentials ready by then.
+    if (savedInstanceState == null
+        && mPreferences.getBoolean(Preferences.WARM_UP_KEY, true)) {
+      TwitterApplication.mAsyncApi.warmUp(mApi.getWarmUpUrls());
+    }
+
     setContentView(R.layout.login);
 
     mUsernameEdit = (EditText) findViewById(R.id.username_edit);
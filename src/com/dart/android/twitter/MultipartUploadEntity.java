@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A multipart/form-data body of text fields plus one file, streamed from its
+ * source through a small buffer so that a large photo is never held in
+ * memory. The total size is worked out up front because the upload server
+ * does not accept chunked requests.
+ */
+class MultipartUploadEntity extends AbstractHttpEntity {
+  private static final String CRLF = "\r\n";
+  private static final String CHARSET = "UTF-8";
+
+  private static final int BUFFER_SIZE = 4 * 1024;
+
+  private final String mBoundary;
+  // Everything before the file's bytes, rendered once.
+  private final byte[] mHead;
+  private final byte[] mTail;
+
+  private final TwitterApi.UploadSource mSource;
+  private final long mSourceLength;
+  private final TwitterApi.ProgressListener mListener;
+
+  MultipartUploadEntity(ArrayList<String[]> fields, String fileField,
+      TwitterApi.UploadSource source, TwitterApi.ProgressListener listener)
+      throws IOException {
+    mBoundary = createBoundary();
+    mSource = source;
+    mListener = listener;
+
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+    for (String[] field : fields) {
+      write(head, "--" + mBoundary + CRLF);
+      write(head, "Content-Disposition: form-data; name=\"" + field[0] + "\""
+          + CRLF);
+      write(head, "Content-Type: text/plain; charset=" + CHARSET + CRLF);
+      write(head, CRLF);
+      write(head, field[1]);
+      write(head, CRLF);
+    }
+
+    write(head, "--" + mBoundary + CRLF);
+    write(head, "Content-Disposition: form-data; name=\"" + fileField
+        + "\"; filename=\"" + source.getName() + "\"" + CRLF);
+    write(head, "Content-Type: " + source.getContentType() + CRLF);
+    write(head, CRLF);
+
+    mHead = head.toByteArray();
+    mTail = (CRLF + "--" + mBoundary + "--" + CRLF).getBytes(CHARSET);
+
+    long length = source.getLength();
+    mSourceLength = length >= 0 ? length : measure(source);
+
+    setContentType("multipart/form-data; boundary=" + mBoundary);
+  }
+
+  private static String createBoundary() {
+    StringBuilder builder = new StringBuilder("----Twitta");
+    Random random = new Random();
+
+    for (int i = 0; i < 24; ++i) {
+      builder.append(Integer.toHexString(random.nextInt(16)));
+    }
+
+    return builder.toString();
+  }
+
+  private static void write(ByteArrayOutputStream out, String s)
+      throws IOException {
+    byte[] bytes = s.getBytes(CHARSET);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  // Counts the bytes of a source that doesn't know its own size, without
+  // keeping them.
+  private static long measure(TwitterApi.UploadSource source)
+      throws IOException {
+    InputStream in = source.open();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long length = 0;
+
+    try {
+      int n;
+
+      while ((n = in.read(buffer)) != -1) {
+        length += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    return length;
+  }
+
+  public long getContentLength() {
+    return mHead.length + mSourceLength + mTail.length;
+  }
+
+  public InputStream getContent() {
+    throw new UnsupportedOperationException(
+        "Multipart upload can only be written.");
+  }
+
+  // The source is opened again for every write.
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    if (out == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+
+    long total = getContentLength();
+    long sent = 0;
+
+    out.write(mHead);
+    sent += mHead.length;
+    onProgress(sent, total);
+
+    InputStream in = mSource.open();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long sourceSent = 0;
+
+    try {
+      int n;
+
+      while ((n = in.read(buffer)) != -1) {
+        if (sourceSent + n > mSourceLength) {
+          throw new IOException("Upload is larger than expected.");
+        }
+
+        out.write(buffer, 0, n);
+        sourceSent += n;
+        sent += n;
+        onProgress(sent, total);
+      }
+    } finally {
+      in.close();
+    }
+
+    if (sourceSent != mSourceLength) {
+      throw new IOException("Upload is smaller than expected.");
+    }
+
+    out.write(mTail);
+    out.flush();
+    onProgress(total, total);
+  }
+
+  private void onProgress(long sent, long total) {
+    if (mListener != null) {
+      mListener.onProgress(sent, total);
+    }
+  }
+
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.os.SystemClock;
+
+/**
+ * Per endpoint accounting of everything that goes over the network: how
+ * many requests, bytes each way, time to first byte, a latency histogram,
+ * retries and what went wrong. Endpoints are URLs with the query and any
+ * ids taken out, e.g. "twitter.com/direct_messages/destroy/:id.json".
+ *
+ * Shared by every client in the process. Dump it with
+ * "adb shell dumpsys activity service com.dart.android.twitter/.TwitterService"
+ * while the service is running.
+ */
+public class NetworkStats implements TwitterApi.TransferListener {
+  // Upper bounds of the latency histogram buckets. The last bucket holds
+  // everything slower.
+  public static final long[] LATENCY_BUCKETS_MS = { 100, 250, 500, 1000,
+      2000, 5000, 10000 };
+
+  public static final String ERROR_TIMEOUT = "timeout";
+  public static final String ERROR_DNS = "dns";
+  public static final String ERROR_TLS = "tls";
+  public static final String ERROR_ABORTED = "aborted";
+  public static final String ERROR_IO = "io";
+  public static final String ERROR_HTTP_4XX = "http_4xx";
+  public static final String ERROR_HTTP_5XX = "http_5xx";
+
+  private static final String ID = ":id";
+
+  private static NetworkStats sInstance;
+
+  private final HashMap<String, Endpoint> mEndpoints =
+      new HashMap<String, Endpoint>();
+  private long mStartTime = System.currentTimeMillis();
+
+  public static synchronized NetworkStats getInstance() {
+    if (sInstance == null) {
+      sInstance = new NetworkStats();
+    }
+
+    return sInstance;
+  }
+
+  /**
+   * The counters for one endpoint. Times are in milliseconds. Byte counts
+   * only cover bodies: bytesUp is what was sent, wireBytesDown what was
+   * received and contentBytesDown the same after decompression.
+   */
+  public static class Endpoint {
+    public final String name;
+
+    public int requests;
+    public int retries;
+    public int errors;
+    public long bytesUp;
+    public long wireBytesDown;
+    public long contentBytesDown;
+    // Over the requests that got a response.
+    public int responses;
+    public long totalTimeToFirstByteMs;
+    // Over the requests whose body was read to the end or closed.
+    public int completed;
+    public long totalLatencyMs;
+    public final int[] latencyHistogram = new int[LATENCY_BUCKETS_MS.length + 1];
+    public final TreeMap<String, Integer> errorsByClass =
+        new TreeMap<String, Integer>();
+
+    Endpoint(String name) {
+      this.name = name;
+    }
+
+    Endpoint(Endpoint other) {
+      name = other.name;
+      requests = other.requests;
+      retries = other.retries;
+      errors = other.errors;
+      bytesUp = other.bytesUp;
+      wireBytesDown = other.wireBytesDown;
+      contentBytesDown = other.contentBytesDown;
+      responses = other.responses;
+      totalTimeToFirstByteMs = other.totalTimeToFirstByteMs;
+      completed = other.completed;
+      totalLatencyMs = other.totalLatencyMs;
+      System.arraycopy(other.latencyHistogram, 0, latencyHistogram, 0,
+          latencyHistogram.length);
+      errorsByClass.putAll(other.errorsByClass);
+    }
+
+    public long getAverageTimeToFirstByteMs() {
+      return responses == 0 ? 0 : totalTimeToFirstByteMs / responses;
+    }
+
+    public long getAverageLatencyMs() {
+      return completed == 0 ? 0 : totalLatencyMs / completed;
+    }
+
+    void addError(String errorClass) {
+      ++errors;
+
+      Integer count = errorsByClass.get(errorClass);
+      errorsByClass.put(errorClass, count == null ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * One request, from before the first attempt until its body is done.
+   * Not thread safe; a call belongs to the thread making the request.
+   */
+  public class Call {
+    private final String mEndpoint;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private int mAttempts = 0;
+    private long mBytesUp = 0;
+    private boolean mIsRecorded = false;
+    private boolean mIsFailed = false;
+    private boolean mIsFinished = false;
+
+    private Call(String endpoint) {
+      mEndpoint = endpoint;
+    }
+
+    // Call with every request actually sent, including retries and hedges.
+    public void onAttempt(HttpRequest request) {
+      ++mAttempts;
+
+      if (request instanceof HttpEntityEnclosingRequest) {
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request)
+            .getEntity();
+
+        if (entity != null && entity.getContentLength() > 0) {
+          mBytesUp += entity.getContentLength();
+        }
+      }
+    }
+
+    // The status line and headers are in. Anything but a 2xx or 304 is
+    // counted as an error.
+    public void onResponse(int statusCode) {
+      if (mIsRecorded) {
+        return;
+      }
+
+      mIsRecorded = true;
+
+      long timeToFirstByte = SystemClock.elapsedRealtime() - mStartTime;
+
+      synchronized (NetworkStats.this) {
+        Endpoint endpoint = record();
+        ++endpoint.responses;
+        endpoint.totalTimeToFirstByteMs += timeToFirstByte;
+
+        if (statusCode >= 500) {
+          endpoint.addError(ERROR_HTTP_5XX);
+          mIsFailed = true;
+        } else if (statusCode >= 400) {
+          endpoint.addError(ERROR_HTTP_4XX);
+          mIsFailed = true;
+        }
+      }
+    }
+
+    // The request failed before or while reading the body. isAborted is
+    // whether it was cancelled rather than failing by itself.
+    public void onFailure(Throwable e, boolean isAborted) {
+      if (mIsFinished) {
+        return;
+      }
+
+      mIsFinished = true;
+
+      synchronized (NetworkStats.this) {
+        if (!mIsRecorded) {
+          mIsRecorded = true;
+          record();
+        }
+
+        // An error status has already been counted.
+        if (!mIsFailed) {
+          mIsFailed = true;
+          getEndpoint(mEndpoint).addError(isAborted ? ERROR_ABORTED
+              : getErrorClass(e));
+        }
+      }
+    }
+
+    // The body has been read or thrown away.
+    public void onComplete() {
+      if (mIsFinished) {
+        return;
+      }
+
+      mIsFinished = true;
+
+      long latency = SystemClock.elapsedRealtime() - mStartTime;
+
+      synchronized (NetworkStats.this) {
+        if (!mIsRecorded) {
+          mIsRecorded = true;
+          record();
+        }
+
+        Endpoint endpoint = getEndpoint(mEndpoint);
+        ++endpoint.completed;
+        endpoint.totalLatencyMs += latency;
+        ++endpoint.latencyHistogram[getBucket(latency)];
+      }
+    }
+
+    // Calls onComplete() once in is closed, or onFailure() if reading it
+    // fails first.
+    public InputStream completeWith(InputStream in) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          try {
+            return super.read();
+          } catch (IOException e) {
+            onFailure(e, false);
+            throw e;
+          }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+            throws IOException {
+          try {
+            return super.read(buffer, offset, length);
+          } catch (IOException e) {
+            onFailure(e, false);
+            throw e;
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            onComplete();
+          }
+        }
+      };
+    }
+
+    // Caller must hold the stats lock.
+    private Endpoint record() {
+      Endpoint endpoint = getEndpoint(mEndpoint);
+      ++endpoint.requests;
+      endpoint.retries += Math.max(0, mAttempts - 1);
+      endpoint.bytesUp += mBytesUp;
+
+      return endpoint;
+    }
+  }
+
+  public Call begin(String url) {
+    return new Call(getEndpointName(url));
+  }
+
+  // Body sizes are reported by ContentEncoding's decoder.
+  public void onTransferComplete(String url, long wireBytes,
+      long contentBytes) {
+    String name = getEndpointName(url);
+
+    synchronized (this) {
+      Endpoint endpoint = getEndpoint(name);
+      endpoint.wireBytesDown += wireBytes;
+      endpoint.contentBytesDown += contentBytes;
+    }
+  }
+
+  // Caller must hold the lock.
+  private Endpoint getEndpoint(String name) {
+    Endpoint endpoint = mEndpoints.get(name);
+
+    if (endpoint == null) {
+      endpoint = new Endpoint(name);
+      mEndpoints.put(name, endpoint);
+    }
+
+    return endpoint;
+  }
+
+  // A copy of the counters, busiest endpoints (by bytes received) first.
+  public synchronized ArrayList<Endpoint> getEndpoints() {
+    ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    for (Endpoint endpoint : mEndpoints.values()) {
+      int i = 0;
+
+      while (i < endpoints.size()
+          && endpoints.get(i).wireBytesDown >= endpoint.wireBytesDown) {
+        ++i;
+      }
+
+      endpoints.add(i, new Endpoint(endpoint));
+    }
+
+    return endpoints;
+  }
+
+  public synchronized void reset() {
+    mEndpoints.clear();
+    mStartTime = System.currentTimeMillis();
+  }
+
+  public void dump(PrintWriter pw) {
+    long startTime;
+
+    synchronized (this) {
+      startTime = mStartTime;
+    }
+
+    ArrayList<Endpoint> endpoints = getEndpoints();
+
+    pw.println("Network stats for the last "
+        + (System.currentTimeMillis() - startTime) / 1000 + " s:");
+
+    for (Endpoint endpoint : endpoints) {
+      pw.println("  " + endpoint.name);
+      pw.println("    requests=" + endpoint.requests + " retries="
+          + endpoint.retries + " errors=" + endpoint.errors + " "
+          + endpoint.errorsByClass);
+      pw.println("    up=" + endpoint.bytesUp + " down=" + endpoint.wireBytesDown
+          + " decoded=" + endpoint.contentBytesDown);
+      pw.println("    ttfb avg=" + endpoint.getAverageTimeToFirstByteMs()
+          + "ms latency avg=" + endpoint.getAverageLatencyMs() + "ms");
+
+      StringBuilder histogram = new StringBuilder("    latency");
+
+      for (int i = 0; i < endpoint.latencyHistogram.length; ++i) {
+        histogram.append(i < LATENCY_BUCKETS_MS.length ? " <"
+            + LATENCY_BUCKETS_MS[i] : " >=" + LATENCY_BUCKETS_MS[i - 1]);
+        histogram.append("ms:").append(endpoint.latencyHistogram[i]);
+      }
+
+      pw.println(histogram);
+    }
+  }
+
+  static int getBucket(long latencyMs) {
+    for (int i = 0; i < LATENCY_BUCKETS_MS.length; ++i) {
+      if (latencyMs < LATENCY_BUCKETS_MS[i]) {
+        return i;
+      }
+    }
+
+    return LATENCY_BUCKETS_MS.length;
+  }
+
+  static String getErrorClass(Throwable e) {
+    if (e instanceof SocketTimeoutException
+        || e instanceof ConnectTimeoutException) {
+      return ERROR_TIMEOUT;
+    } else if (e instanceof UnknownHostException) {
+      return ERROR_DNS;
+    } else if (e instanceof SSLException) {
+      return ERROR_TLS;
+    } else if (e instanceof InterruptedIOException) {
+      return ERROR_ABORTED;
+    }
+
+    return ERROR_IO;
+  }
+
+  /**
+   * Strips the scheme, query and anything that varies per call: numeric path
+   * segments become ":id" and image file names "*", so that all avatars on
+   * a host share one endpoint.
+   */
+  public static String getEndpointName(String url) {
+    URI uri;
+
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      return url;
+    }
+
+    String path = uri.getRawPath();
+    StringBuilder builder = new StringBuilder(uri.getHost() == null ? ""
+        : uri.getHost());
+
+    if (path == null || path.length() == 0) {
+      return builder.append('/').toString();
+    }
+
+    String[] segments = path.split("/");
+
+    for (int i = 1; i < segments.length; ++i) {
+      String segment = segments[i];
+      int dot = segment.lastIndexOf('.');
+      String name = dot == -1 ? segment : segment.substring(0, dot);
+      String extension = dot == -1 ? "" : segment.substring(dot);
+
+      builder.append('/');
+
+      if (isNumber(name)) {
+        builder.append(ID).append(extension);
+      } else if (i == segments.length - 1 && isImage(extension)) {
+        builder.append('*').append(extension);
+      } else {
+        builder.append(segment);
+      }
+    }
+
+    return builder.toString();
+  }
+
+  private static boolean isNumber(String s) {
+    if (s.length() == 0) {
+      return false;
+    }
+
+    for (int i = 0; i < s.length(); ++i) {
+      if (!Character.isDigit(s.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean isImage(String extension) {
+    String lower = extension.toLowerCase();
+
+    return lower.equals(".jpg") || lower.equals(".jpeg")
+        || lower.equals(".png") || lower.equals(".gif");
+  }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.dart.android.twitter.TwitterApi.ApiException;
+import com.dart.android.twitter.TwitterApi.AuthException;
+
+/**
+ * Write-behind queue for status updates, DMs and DM deletes. They are
+ * stored in the outbox table straight away, shown in the lists as if
+ * already done, and drained in the background whenever the app is talking
+ * to the network anyway. A send that fails on I/O stays queued for the next
+ * drain. Once TwitterDbAdapter.OUTBOX_MAX_ATTEMPTS attempts have reached the
+ * server and failed, it is left in the table marked as failed. Attempts
+ * that never got a connection, e.g. while offline, don't count. One the
+ * server refuses is dropped.
+ *
+ * An I/O error can also mean the server took the item but the answer was
+ * lost, so a retry could send it twice. Twitter refuses a status identical
+ * to the author's latest one, so such a retry is dropped as REJECTED and the
+ * original shows up on the next refresh. DMs are not checked by the server:
+ * before resending one, the recently sent DMs are searched for it.
+ */
+public class Outbox {
+  private static final String TAG = "Outbox";
+
+  // Items read from the table per query while draining.
+  private static final int DRAIN_BATCH_SIZE = 10;
+
+  public enum Result {
+    OK, IO_ERROR, AUTH_ERROR, REJECTED, FAILED
+  }
+
+  // How far before it was queued a sent DM may be dated and still be taken
+  // for the queued one, allowing for the phone's clock being off.
+  private static final long DM_MATCH_SLACK_MS = 10 * 60 * 1000;
+
+  public static void queueStatus(TwitterDbAdapter db, String user,
+      String text) {
+    db.queueOutgoing(TwitterDbAdapter.OUTBOX_TYPE_STATUS, user, text);
+  }
+
+  public static void queueDm(TwitterDbAdapter db, String user, String text) {
+    db.queueOutgoing(TwitterDbAdapter.OUTBOX_TYPE_DM, user, text);
+  }
+
+  // The DMs disappear from the list straight away. The server catches up
+  // when the deletes are drained.
+  public static void queueDmDeletes(TwitterDbAdapter db, List<Long> ids) {
+    db.queueDmDeletes(ids);
+  }
+
+  private static class Item {
+    long id;
+    int type;
+    String user;
+    String text;
+    Date createdAt;
+    int attempts;
+  }
+
+  private static ArrayList<Item> fetchBatch(TwitterDbAdapter db) {
+    ArrayList<Item> items = new ArrayList<Item>();
+    Cursor cursor = db.fetchOutbox(DRAIN_BATCH_SIZE);
+
+    try {
+      while (cursor.moveToNext()) {
+        Item item = new Item();
+        item.id = cursor.getLong(0);
+        item.type = cursor.getInt(1);
+        item.user = cursor.getString(2);
+        item.text = cursor.getString(3);
+        item.attempts = cursor.getInt(5);
+
+        try {
+          item.createdAt = TwitterDbAdapter.DB_DATE_FORMATTER.parse(cursor
+              .getString(4));
+        } catch (ParseException e) {
+          Log.w(TAG, "Invalid created at data.");
+        }
+
+        items.add(item);
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return items;
+  }
+
+  /**
+   * Sends everything queued, oldest first so statuses keep their order.
+   * Stops at the first I/O error since the rest would most likely fail too.
+   * Returns FAILED if an item was given up on. Only one drain runs at a
+   * time; a second caller waits and then sends whatever was queued
+   * meanwhile.
+   */
+  public static synchronized Result drain(TwitterApi api, TwitterDbAdapter db,
+      ImageManager imageManager) {
+    Result result = Result.OK;
+    ArrayList<Item> items;
+
+    while (!(items = fetchBatch(db)).isEmpty()) {
+      Log.i(TAG, "Sending " + items.size() + " queued items.");
+
+      for (Item item : items) {
+        // The user may have deleted it since the batch was read. Past this
+        // point it goes out regardless, and shows up as sent.
+        if (!db.isOutgoingQueued(item.id)) {
+          Log.i(TAG, "Item " + item.id + " was deleted. Skipping it.");
+          continue;
+        }
+
+        try {
+          send(api, db, imageManager, item);
+        } catch (IOException e) {
+          Log.e(TAG, e.getMessage(), e);
+
+          if (isUnsent(e)) {
+            // Not an attempt, so it doesn't count towards giving up.
+            Log.i(TAG, "Item " + item.id + " not sent. Keeping it queued.");
+            return result == Result.FAILED ? result : Result.IO_ERROR;
+          }
+
+          db.incrementOutboxAttempts(item.id);
+
+          if (item.attempts + 1 >= TwitterDbAdapter.OUTBOX_MAX_ATTEMPTS) {
+            // Stop letting it hold up the rest of the queue.
+            Log.w(TAG, "Giving up on item " + item.id + ".");
+            result = Result.FAILED;
+            continue;
+          }
+
+          Log.i(TAG, "Item " + item.id + " failed " + (item.attempts + 1)
+              + " times. Keeping it queued.");
+          return result == Result.FAILED ? result : Result.IO_ERROR;
+        } catch (AuthException e) {
+          Log.i(TAG, "Invalid authorization.");
+          return Result.AUTH_ERROR;
+        } catch (ApiException e) {
+          // The server refused it. Sending it again won't help.
+          Log.w(TAG, "Dropping item " + item.id + ": " + e.getMessage());
+          db.deleteOutgoing(item.id);
+          result = Result.REJECTED;
+        } catch (JSONException e) {
+          // It went out, we just can't show the server's copy. The next
+          // refresh will bring it in.
+          Log.w(TAG, "Could not parse JSON after sending.");
+          db.deleteOutgoing(item.id);
+        }
+      }
+    }
+
+    Result deleteResult = drainDeletes(api, db);
+
+    return deleteResult == Result.OK ? result : deleteResult;
+  }
+
+  // Whether the request failed before anything was sent: no network, no
+  // DNS, no connection, or the host's circuit open. A cancelled drain does
+  // count, since the request may have got through, and counting it makes
+  // the next try look for a sent DM first.
+  private static boolean isUnsent(IOException e) {
+    return e instanceof UnknownHostException
+        || e instanceof ConnectException
+        || e instanceof NoRouteToHostException
+        || e instanceof ConnectTimeoutException
+        || e instanceof CircuitBreaker.OpenException;
+  }
+
+  /**
+   * Does the queued DM deletes, several at a time. Returns IO_ERROR if some
+   * are left for next time and FAILED if some were given up on.
+   */
+  public static synchronized Result drainDeletes(TwitterApi api,
+      TwitterDbAdapter db) {
+    ArrayList<Long> rowIds = new ArrayList<Long>();
+    ArrayList<Long> ids = new ArrayList<Long>();
+    ArrayList<Integer> attempts = new ArrayList<Integer>();
+    Cursor cursor = db.fetchOutboxDeletes();
+
+    try {
+      while (cursor.moveToNext()) {
+        rowIds.add(cursor.getLong(0));
+        ids.add(Long.parseLong(cursor.getString(3)));
+        attempts.add(cursor.getInt(5));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    if (ids.isEmpty()) {
+      return Result.OK;
+    }
+
+    Log.i(TAG, "Deleting " + ids.size() + " queued DMs.");
+
+    ArrayList<Long> failed;
+
+    try {
+      failed = api.destroyDirectMessages(ids);
+    } catch (AuthException e) {
+      Log.i(TAG, "Invalid authorization.");
+      return Result.AUTH_ERROR;
+    }
+
+    // If cancelled, what wasn't done yet didn't fail either.
+    boolean isInterrupted = Thread.currentThread().isInterrupted();
+    Result result = Result.OK;
+
+    for (int i = 0; i < ids.size(); ++i) {
+      long rowId = rowIds.get(i);
+
+      if (!failed.contains(ids.get(i))) {
+        db.deleteOutgoing(rowId);
+      } else if (isInterrupted) {
+        result = Result.IO_ERROR;
+      } else if (attempts.get(i) + 1 >= TwitterDbAdapter.OUTBOX_MAX_ATTEMPTS) {
+        // Nothing to show for it, so there is no point keeping it.
+        Log.w(TAG, "Giving up on deleting DM " + ids.get(i) + ".");
+        db.deleteOutgoing(rowId);
+        result = Result.FAILED;
+      } else {
+        db.incrementOutboxAttempts(rowId);
+
+        if (result == Result.OK) {
+          result = Result.IO_ERROR;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private static void send(TwitterApi api, TwitterDbAdapter db,
+      ImageManager imageManager, Item item) throws IOException,
+      AuthException, ApiException, JSONException {
+    String profileImageUrl;
+
+    if (item.type == TwitterDbAdapter.OUTBOX_TYPE_DM) {
+      if (item.attempts > 0) {
+        Dm sent = null;
+
+        // Only a failed send may be dropped. If the lookup itself is
+        // refused, e.g. for the rate limit, send anyway.
+        try {
+          sent = findSentDm(api, item);
+        } catch (ApiException e) {
+          Log.w(TAG, "Could not look for sent DM: " + e.getMessage());
+        }
+
+        if (sent != null) {
+          Log.i(TAG, "Item " + item.id + " was sent already.");
+          db.completeOutgoing(item.id, sent);
+          return;
+        }
+      }
+
+      JSONObject jsonObject = api.sendDirectMessage(item.user, item.text);
+      Dm dm = Dm.create(jsonObject, true);
+      db.completeOutgoing(item.id, dm);
+      profileImageUrl = dm.profileImageUrl;
+    } else {
+      JSONObject jsonObject = api.update(item.text);
+      Tweet tweet = Tweet.create(jsonObject);
+      db.completeOutgoing(item.id, tweet);
+      profileImageUrl = tweet.profileImageUrl;
+    }
+
+    if (!Utils.isEmpty(profileImageUrl)) {
+      // Fetch image to cache.
+      try {
+        imageManager.put(profileImageUrl);
+      } catch (IOException e) {
+        Log.e(TAG, e.getMessage(), e);
+      }
+    }
+  }
+
+  // Looks for a queued DM among the latest sent ones, in case an earlier
+  // attempt got through but its answer didn't.
+  private static Dm findSentDm(TwitterApi api, final Item item)
+      throws IOException, AuthException, ApiException {
+    final Dm[] found = new Dm[1];
+
+    api.getDmsSinceId(-1, true, new TwitterApi.ItemHandler<Dm>() {
+      public boolean handle(Dm dm) {
+        if (!item.user.equalsIgnoreCase(dm.screenName)
+            || !item.text.equals(dm.text)) {
+          return true;
+        }
+
+        if (item.createdAt == null || dm.createdAt == null
+            || dm.createdAt.getTime() >= item.createdAt.getTime()
+                - DM_MATCH_SLACK_MS) {
+          found[0] = dm;
+          return false;
+        }
+
+        return true;
+      }
+    });
+
+    return found[0];
+  }
+
+}
@@ -36,9 +36,12 @@ public class PictureActivity extends BaseActivity {
   private TextView mProgressText;
 
   private Uri mImageUri;
-  private File mFile;
+  private String mImageName;
+  private String mImageType;
+  // -1 if unknown.
+  private long mImageSize = -1;
 
-  private UserTask<Void, Void, TaskResult> mSendTask;
+  private UserTask<Void, Integer, TaskResult> mSendTask;
 
   private static final int MAX_BITMAP_SIZE = 480;
 
@@ -76,30 +79,47 @@ public class PictureActivity extends BaseActivity {
     Intent intent = getIntent();
     Bundle extras = intent.getExtras();
 
-    mFile = null;
+    mImageUri = null;
 
     if (Intent.ACTION_SEND.equals(intent.getAction()) && extras != null
         && extras.containsKey(Intent.EXTRA_STREAM)) {
-      mImageUri = (Uri) extras.getParcelable(Intent.EXTRA_STREAM);
-      if (mImageUri != null) {
-        Cursor cursor = getContentResolver().query(mImageUri, null, null, null,
+      Uri uri = (Uri) extras.getParcelable(Intent.EXTRA_STREAM);
+      if (uri != null) {
+        Cursor cursor = getContentResolver().query(uri, null, null, null,
             null);
 
         if (cursor.moveToFirst()) {
+          // The picture is streamed from the uri. The file name, type and
+          // size only go into the upload's headers.
           String filename = cursor.getString(cursor
               .getColumnIndexOrThrow(ImageColumns.DATA));
 
-          mFile = new File(filename);
+          if (filename != null) {
+            mImageName = new File(filename).getName();
+          }
+
+          int typeIndex = cursor.getColumnIndex(ImageColumns.MIME_TYPE);
+
+          if (typeIndex >= 0) {
+            mImageType = cursor.getString(typeIndex);
+          }
+
+          int sizeIndex = cursor.getColumnIndex(ImageColumns.SIZE);
+
+          if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+            mImageSize = cursor.getLong(sizeIndex);
+          }
+
+          mImageUri = uri;
         }
 
         cursor.close();
 
-        mPreview.setImageBitmap(createThumbnailBitmap(mImageUri,
-            MAX_BITMAP_SIZE));
+        mPreview.setImageBitmap(createThumbnailBitmap(uri, MAX_BITMAP_SIZE));
       }
     }
 
-    if (mFile == null) {
+    if (mImageUri == null) {
       updateProgress("Could not locate picture file. Sorry!");
       disableEntry();
     }
@@ -161,8 +181,9 @@ public class PictureActivity extends BaseActivity {
     }
   }
 
-  private class SendTask extends UserTask<Void, Void, TaskResult> {
+  private class SendTask extends UserTask<Void, Integer, TaskResult> {
     private String apiErrorMessage;
+    private int mPercent = -1;
 
     @Override
     public void onPreExecute() {
@@ -174,7 +195,18 @@ public class PictureActivity extends BaseActivity {
     public TaskResult doInBackground(Void... params) {
       try {
         String status = mTweetEdit.getText().toString();
-        getApi().postTwitPic(mFile, status);
+        getApi().postTwitPic(new UriSource(), status,
+            new TwitterApi.ProgressListener() {
+          public void onProgress(long bytesSent, long totalBytes) {
+            int percent = (int) (bytesSent * 100 / Math.max(1, totalBytes));
+
+            // Only bother the UI thread when the number changes.
+            if (percent != mPercent) {
+              mPercent = percent;
+              publishProgress(percent);
+            }
+          }
+        });
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return TaskResult.IO_ERROR;
@@ -190,6 +222,15 @@ public class PictureActivity extends BaseActivity {
       return TaskResult.OK;
     }
 
+    @Override
+    public void onProgressUpdate(Integer... progress) {
+      if (isCancelled()) {
+        return;
+      }
+
+      updateProgress("Posting pic... " + progress[0] + "%");
+    }
+
     @Override
     public void onPostExecute(TaskResult result) {
       if (isCancelled()) {
@@ -213,6 +254,30 @@ public class PictureActivity extends BaseActivity {
     }
   }
 
+  private class UriSource implements TwitterApi.UploadSource {
+    public InputStream open() throws IOException {
+      InputStream input = getContentResolver().openInputStream(mImageUri);
+
+      if (input == null) {
+        throw new IOException("Could not open picture.");
+      }
+
+      return input;
+    }
+
+    public long getLength() {
+      return mImageSize;
+    }
+
+    public String getName() {
+      return Utils.isEmpty(mImageName) ? "media.jpg" : mImageName;
+    }
+
+    public String getContentType() {
+      return Utils.isEmpty(mImageType) ? "image/jpeg" : mImageType;
+    }
+  }
+
   private View.OnKeyListener editEnterHandler = new View.OnKeyListener() {
     public boolean onKey(View v, int keyCode, KeyEvent event) {
       if (keyCode == KeyEvent.KEYCODE_ENTER
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+
+import android.util.Log;
+
+/**
+ * A thread safe, keep-alive connection pool shared by every HTTP client in
+ * the app. Counts leases so we can tell how often a connection is reused
+ * rather than opened from scratch.
+ */
+public class PooledConnectionManager extends ThreadSafeClientConnManager {
+  private static final String TAG = "PooledConnectionManager";
+
+  public static final int MAX_TOTAL = 8;
+  public static final int MAX_PER_ROUTE = 4;
+  // How long to wait for a free connection from the pool.
+  public static final long LEASE_TIMEOUT_MS = 10 * 1000;
+  // Idle connections older than this are closed.
+  public static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+  private static PooledConnectionManager sInstance;
+
+  // Stats.
+  private int mLeaseCount;
+  private int mReuseCount;
+  private long mLastReapTime;
+
+  public static synchronized PooledConnectionManager getInstance() {
+    if (sInstance == null) {
+      sInstance = new PooledConnectionManager(createParams());
+    }
+
+    return sInstance;
+  }
+
+  private static HttpParams createParams() {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL);
+    ConnManagerParams.setMaxConnectionsPerRoute(params,
+        new ConnPerRouteBean(MAX_PER_ROUTE));
+    ConnManagerParams.setTimeout(params, LEASE_TIMEOUT_MS);
+
+    return params;
+  }
+
+  private static SchemeRegistry createSchemeRegistry() {
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(),
+        80));
+    registry.register(new Scheme("https", createSecureSocketFactory(), 443));
+
+    return registry;
+  }
+
+  private static SocketFactory createSecureSocketFactory() {
+    try {
+      return new TlsSocketFactory();
+    } catch (GeneralSecurityException e) {
+      Log.e(TAG, "TLS session caching unavailable.", e);
+      return SSLSocketFactory.getSocketFactory();
+    }
+  }
+
+  private final HttpParams mParams;
+
+  private PooledConnectionManager(HttpParams params) {
+    super(params, createSchemeRegistry());
+
+    mParams = params;
+  }
+
+  // Parameters clients built on this pool should start from.
+  public HttpParams getParams() {
+    return mParams;
+  }
+
+  @Override
+  public ClientConnectionRequest requestConnection(HttpRoute route,
+      Object state) {
+    reapIdleConnections();
+
+    final ClientConnectionRequest request = super.requestConnection(route,
+        state);
+
+    return new ClientConnectionRequest() {
+      public ManagedClientConnection getConnection(long timeout,
+          TimeUnit unit) throws InterruptedException,
+          ConnectionPoolTimeoutException {
+        ManagedClientConnection connection = request.getConnection(timeout,
+            unit);
+        onLease(connection);
+
+        return connection;
+      }
+
+      public void abortRequest() {
+        request.abortRequest();
+      }
+    };
+  }
+
+  private synchronized void onLease(ManagedClientConnection connection) {
+    ++mLeaseCount;
+
+    // A pooled connection that is still open skips DNS, TCP and TLS setup.
+    if (connection.isOpen()) {
+      ++mReuseCount;
+    }
+  }
+
+  // Closing idle connections is done lazily, at most once per idle period,
+  // rather than from a dedicated thread.
+  private void reapIdleConnections() {
+    long now = System.currentTimeMillis();
+
+    synchronized (this) {
+      if (now - mLastReapTime < IDLE_TIMEOUT_MS) {
+        return;
+      }
+
+      mLastReapTime = now;
+    }
+
+    Log.d(TAG, "Closing idle connections.");
+    closeIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized int getLeaseCount() {
+    return mLeaseCount;
+  }
+
+  public synchronized int getReuseCount() {
+    return mReuseCount;
+  }
+
+  public synchronized int getNewConnectionCount() {
+    return mLeaseCount - mReuseCount;
+  }
+
+}
@@ -24,6 +24,7 @@ public class Preferences {
       "check_update_interval";
   public static final String VIBRATE_KEY = "vibrate";
   public static final String REPLIES_ONLY_KEY = "replies_only";
+  public static final String WARM_UP_KEY = "warm_up";
   
   public static String RINGTONE_KEY = "ringtone";
   public static final String RINGTONE_DEFAULT_KEY =
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.util.HashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import android.util.Log;
+
+/**
+ * Tracks the hourly request budget Twitter reports in its X-RateLimit
+ * headers, per endpoint family. Interactive requests may use the whole
+ * budget but background work (service polls, follower syncs) is held back
+ * once the remaining quota gets low, so the user can still refresh.
+ */
+public class RateLimiter {
+  private static final String TAG = "RateLimiter";
+
+  // The authenticated REST API and the search API are metered separately.
+  public static final String FAMILY_REST = "rest";
+  public static final String FAMILY_SEARCH = "search";
+
+  private static final String HEADER_LIMIT = "X-RateLimit-Limit";
+  private static final String HEADER_REMAINING = "X-RateLimit-Remaining";
+  private static final String HEADER_RESET = "X-RateLimit-Reset";
+
+  // Background work stops when fewer than this share of the hourly budget is
+  // left, or fewer than MIN_INTERACTIVE_RESERVE requests, whichever is more.
+  private static final float BACKGROUND_RESERVE_FRACTION = 0.25f;
+  private static final int MIN_INTERACTIVE_RESERVE = 10;
+
+  private static class Budget {
+    int limit = -1;
+    int remaining = -1;
+    // Milliseconds since the epoch.
+    long resetTime = 0;
+  }
+
+  private HashMap<String, Budget> mBudgets = new HashMap<String, Budget>();
+
+  public synchronized void update(String family, HttpResponse response) {
+    Header limit = response.getFirstHeader(HEADER_LIMIT);
+    Header remaining = response.getFirstHeader(HEADER_REMAINING);
+    Header reset = response.getFirstHeader(HEADER_RESET);
+
+    if (remaining == null) {
+      return;
+    }
+
+    Budget budget = getBudget(family);
+
+    try {
+      budget.remaining = Integer.parseInt(remaining.getValue().trim());
+
+      if (limit != null) {
+        budget.limit = Integer.parseInt(limit.getValue().trim());
+      }
+
+      if (reset != null) {
+        budget.resetTime = Long.parseLong(reset.getValue().trim()) * 1000;
+      }
+    } catch (NumberFormatException e) {
+      Log.w(TAG, "Invalid rate limit header.");
+      return;
+    }
+
+    Log.d(TAG, family + ": " + budget.remaining + " of " + budget.limit
+        + " requests left.");
+  }
+
+  private Budget getBudget(String family) {
+    Budget budget = mBudgets.get(family);
+
+    if (budget == null) {
+      budget = new Budget();
+      mBudgets.put(family, budget);
+    }
+
+    return budget;
+  }
+
+  // Returns the known remaining requests, or -1 if unknown or the window has
+  // since been reset.
+  public synchronized int getRemaining(String family) {
+    Budget budget = mBudgets.get(family);
+
+    if (budget == null || budget.remaining < 0
+        || System.currentTimeMillis() >= budget.resetTime) {
+      return -1;
+    }
+
+    return budget.remaining;
+  }
+
+  public synchronized int getLimit(String family) {
+    Budget budget = mBudgets.get(family);
+
+    return budget == null ? -1 : budget.limit;
+  }
+
+  public synchronized long getResetTime(String family) {
+    Budget budget = mBudgets.get(family);
+
+    return budget == null ? 0 : budget.resetTime;
+  }
+
+  public synchronized boolean isExhausted(String family) {
+    return getRemaining(family) == 0;
+  }
+
+  public synchronized boolean canRunInBackground(String family) {
+    int remaining = getRemaining(family);
+
+    if (remaining < 0) {
+      return true;
+    }
+
+    int limit = getLimit(family);
+    int reserve = Math.max(MIN_INTERACTIVE_RESERVE,
+        (int) (limit * BACKGROUND_RESERVE_FRACTION));
+
+    return remaining > reserve;
+  }
+
+}
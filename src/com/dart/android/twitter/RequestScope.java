@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.util.Log;
+
+/**
+ * The HTTP requests one call on one thread is waiting on. A socket read
+ * blocked inside HttpClient ignores Thread.interrupt(), so a cancelled task
+ * would otherwise keep downloading until the socket timeout. Cancelling
+ * calls abortAll() for the task's thread instead, which aborts its requests
+ * and so shuts down their connections.
+ *
+ * A scope is opened before the first request of a call and closed once its
+ * response has been read; open() and close() are paired like a lock.
+ */
+public class RequestScope {
+  private static final String TAG = "RequestScope";
+
+  // Open scopes by the thread that opened them.
+  private static final HashMap<Thread, ArrayList<RequestScope>> sScopes =
+      new HashMap<Thread, ArrayList<RequestScope>>();
+
+  private final Thread mOwner;
+  private final ArrayList<HttpUriRequest> mRequests =
+      new ArrayList<HttpUriRequest>();
+  private boolean mIsAborted = false;
+
+  private RequestScope(Thread owner) {
+    mOwner = owner;
+  }
+
+  public static RequestScope open() {
+    RequestScope scope = new RequestScope(Thread.currentThread());
+
+    synchronized (sScopes) {
+      ArrayList<RequestScope> scopes = sScopes.get(scope.mOwner);
+
+      if (scopes == null) {
+        scopes = new ArrayList<RequestScope>();
+        sScopes.put(scope.mOwner, scopes);
+      }
+
+      scopes.add(scope);
+    }
+
+    return scope;
+  }
+
+  public void close() {
+    synchronized (sScopes) {
+      ArrayList<RequestScope> scopes = sScopes.get(mOwner);
+
+      if (scopes != null) {
+        scopes.remove(this);
+
+        if (scopes.isEmpty()) {
+          sScopes.remove(mOwner);
+        }
+      }
+    }
+
+    synchronized (this) {
+      mRequests.clear();
+    }
+  }
+
+  /**
+   * Tracks a request about to be sent. It may be added from any thread,
+   * e.g. by a hedged attempt. If the scope was aborted, or its thread
+   * interrupted, already, the request is aborted now so that sending it
+   * fails at once.
+   */
+  public HttpUriRequest add(HttpUriRequest request) {
+    boolean isAborted;
+
+    synchronized (this) {
+      isAborted = mIsAborted || mOwner.isInterrupted();
+
+      if (!isAborted) {
+        mRequests.add(request);
+      }
+    }
+
+    if (isAborted) {
+      request.abort();
+    }
+
+    return request;
+  }
+
+  public void abort() {
+    ArrayList<HttpUriRequest> requests;
+
+    synchronized (this) {
+      mIsAborted = true;
+      requests = new ArrayList<HttpUriRequest>(mRequests);
+      mRequests.clear();
+    }
+
+    for (HttpUriRequest request : requests) {
+      try {
+        request.abort();
+      } catch (UnsupportedOperationException e) {
+        Log.w(TAG, "Request can't be aborted: " + request.getURI());
+      }
+    }
+  }
+
+  public synchronized boolean isAborted() {
+    return mIsAborted;
+  }
+
+  /**
+   * What a call throws, in place of whatever its request failed with, when
+   * it was cancelled rather than failed. Someone else asking for the same
+   * thing should try again rather than give up.
+   */
+  public static class AbortedException extends InterruptedIOException {
+    private static final long serialVersionUID = 6361519209394287416L;
+
+    public AbortedException() {
+      super("Request aborted.");
+    }
+  }
+
+  /**
+   * Returns a stream that closes this scope when it is closed, for calls
+   * that hand the response body back to their caller.
+   */
+  public InputStream closeWith(InputStream in) {
+    return new FilterInputStream(in) {
+      private boolean mIsClosed = false;
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          if (!mIsClosed) {
+            mIsClosed = true;
+            RequestScope.this.close();
+          }
+        }
+      }
+    };
+  }
+
+  // Aborts everything thread is waiting on. Safe to call from any thread.
+  public static void abortAll(Thread thread) {
+    ArrayList<RequestScope> scopes;
+
+    synchronized (sScopes) {
+      scopes = sScopes.get(thread);
+
+      if (scopes == null) {
+        return;
+      }
+
+      scopes = new ArrayList<RequestScope>(scopes);
+    }
+
+    Log.i(TAG, "Aborting requests of " + thread.getName());
+
+    for (RequestScope scope : scopes) {
+      scope.abort();
+    }
+  }
+
+  /**
+   * Makes threads whose interrupt() also aborts their requests, so that
+   * Future.cancel(true) and ExecutorService.shutdownNow() stop a transfer
+   * too.
+   */
+  public static ThreadFactory newThreadFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger(1);
+
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        return new Thread(r, name + " #" + count.getAndIncrement()) {
+          @Override
+          public void interrupt() {
+            super.interrupt();
+            abortAll(this);
+          }
+        };
+      }
+    };
+  }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.util.Log;
+
+/**
+ * Retries idempotent requests that failed with an I/O error or a 5xx
+ * response, waiting an exponentially growing, randomized delay between
+ * attempts. Every attempt goes through a per-host circuit breaker so a host
+ * that is down fails fast instead of eating a timeout each time.
+ *
+ * Optionally a GET that has not answered within the hedge delay is sent a
+ * second time, and whichever response arrives first is used.
+ */
+public class RetryPolicy {
+  private static final String TAG = "RetryPolicy";
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final long DEFAULT_BASE_DELAY_MS = 1000;
+  public static final long DEFAULT_MAX_DELAY_MS = 15 * 1000;
+
+  private final int mMaxAttempts;
+  private final long mBaseDelayMs;
+  private final long mMaxDelayMs;
+  // 0 turns hedging off.
+  private final long mHedgeDelayMs;
+
+  private final CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+  private final Random mRandom = new Random();
+
+  // Runs the attempts of hedged requests.
+  private static ExecutorService sHedgeExecutor;
+
+  /**
+   * Makes a fresh request for each attempt, since a request that has been
+   * executed or aborted can't be sent again.
+   */
+  public interface RequestFactory {
+    public HttpUriRequest create() throws IOException;
+  }
+
+  public RetryPolicy() {
+    this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, 0);
+  }
+
+  public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs,
+      long hedgeDelayMs) {
+    mMaxAttempts = Math.max(1, maxAttempts);
+    mBaseDelayMs = baseDelayMs;
+    mMaxDelayMs = maxDelayMs;
+    mHedgeDelayMs = hedgeDelayMs;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return mCircuitBreaker;
+  }
+
+  // Full jitter: a random delay up to the exponential cap, so that clients
+  // which failed together don't all retry together.
+  long getBackoffMs(int attempt) {
+    long cap = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(attempt, 16));
+
+    synchronized (mRandom) {
+      return (long) (mRandom.nextDouble() * cap);
+    }
+  }
+
+  private static boolean isServerError(HttpResponse response) {
+    return response.getStatusLine().getStatusCode() >= 500;
+  }
+
+  /**
+   * Executes the request, retrying if idempotent is true. Returns the
+   * response of the last attempt, which may still be a 5xx. Throws an
+   * IOException if the host's circuit is open or every attempt failed.
+   */
+  public HttpResponse execute(HttpClient client, String host,
+      RequestFactory factory, boolean idempotent) throws IOException {
+    int attempts = idempotent ? mMaxAttempts : 1;
+
+    for (int attempt = 0; ; ++attempt) {
+      if (!mCircuitBreaker.allowRequest(host)) {
+        throw new CircuitBreaker.OpenException(host);
+      }
+
+      HttpUriRequest request = null;
+      HttpResponse response;
+
+      try {
+        if (idempotent && mHedgeDelayMs > 0) {
+          response = executeHedged(client, factory);
+        } else {
+          request = factory.create();
+          response = client.execute(request);
+        }
+      } catch (ClientProtocolException e) {
+        // Retrying won't fix a malformed request.
+        throw e;
+      } catch (IOException e) {
+        if (e instanceof RequestScope.AbortedException
+            || (request != null && request.isAborted())
+            || Thread.currentThread().isInterrupted()) {
+          // Cancelled rather than failed: not the host's fault, and nobody
+          // wants the answer any more.
+          throw e;
+        }
+
+        mCircuitBreaker.onFailure(host);
+
+        if (attempt + 1 >= attempts) {
+          throw e;
+        }
+
+        Log.w(TAG, "Attempt " + (attempt + 1) + " failed: " + e.getMessage());
+        sleep(getBackoffMs(attempt));
+        continue;
+      }
+
+      if (!isServerError(response)) {
+        mCircuitBreaker.onSuccess(host);
+        return response;
+      }
+
+      mCircuitBreaker.onFailure(host);
+
+      if (attempt + 1 >= attempts) {
+        return response;
+      }
+
+      Log.w(TAG, "Attempt " + (attempt + 1) + " got "
+          + response.getStatusLine().getStatusCode());
+      consume(response);
+      sleep(getBackoffMs(attempt));
+    }
+  }
+
+  private static void sleep(long ms) throws IOException {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RequestScope.AbortedException();
+    }
+  }
+
+  private static void consume(HttpResponse response) {
+    HttpEntity entity = response.getEntity();
+
+    if (entity != null) {
+      try {
+        entity.consumeContent();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not release connection.", e);
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getHedgeExecutor() {
+    if (sHedgeExecutor == null) {
+      sHedgeExecutor = Executors.newCachedThreadPool();
+    }
+
+    return sHedgeExecutor;
+  }
+
+  // One send of a hedged request. The loser is aborted, and its response,
+  // if it got one anyway, released.
+  private static class Attempt implements Callable<HttpResponse> {
+    private final HttpClient mClient;
+    private final HttpUriRequest mRequest;
+
+    private HttpResponse mResponse;
+    private boolean mAbandoned = false;
+
+    Attempt(HttpClient client, HttpUriRequest request) {
+      mClient = client;
+      mRequest = request;
+    }
+
+    public HttpResponse call() throws IOException {
+      HttpResponse response = mClient.execute(mRequest);
+
+      synchronized (this) {
+        if (mAbandoned) {
+          consume(response);
+          return null;
+        }
+
+        mResponse = response;
+      }
+
+      return response;
+    }
+
+    void abandon() {
+      synchronized (this) {
+        mAbandoned = true;
+
+        if (mResponse != null) {
+          consume(mResponse);
+        }
+      }
+
+      mRequest.abort();
+    }
+
+    boolean isAborted() {
+      return mRequest.isAborted();
+    }
+  }
+
+  private HttpResponse executeHedged(HttpClient client,
+      RequestFactory factory) throws IOException {
+    CompletionService<HttpResponse> completion =
+        new ExecutorCompletionService<HttpResponse>(getHedgeExecutor());
+
+    Attempt first = new Attempt(client, factory.create());
+    Attempt second = null;
+    Future<HttpResponse> firstResult = completion.submit(first);
+    Future<HttpResponse> winner = null;
+    int pending = 1;
+
+    try {
+      winner = completion.poll(mHedgeDelayMs, TimeUnit.MILLISECONDS);
+
+      if (winner == null) {
+        Log.i(TAG, "No response after " + mHedgeDelayMs + " ms. Hedging.");
+        second = new Attempt(client, factory.create());
+        completion.submit(second);
+        ++pending;
+      }
+
+      IOException error = null;
+
+      while (true) {
+        if (winner == null) {
+          winner = completion.take();
+        }
+
+        --pending;
+
+        try {
+          HttpResponse response = winner.get();
+
+          if (response != null) {
+            // The other attempt, if any, is abandoned in finally.
+            if (winner == firstResult) {
+              first = null;
+            } else {
+              second = null;
+            }
+
+            return response;
+          }
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+
+          if (cause instanceof IOException) {
+            error = (IOException) cause;
+          } else {
+            Log.e(TAG, cause.getMessage(), cause);
+            error = new IOException("Request failed.");
+          }
+        }
+
+        if (pending == 0) {
+          // Neither has been abandoned yet, so an abort came from outside.
+          if (first.isAborted() || (second != null && second.isAborted())) {
+            throw new RequestScope.AbortedException();
+          }
+
+          throw error != null ? error : new IOException("Request failed.");
+        }
+
+        winner = null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RequestScope.AbortedException();
+    } finally {
+      if (first != null) {
+        first.abandon();
+      }
+
+      if (second != null) {
+        second.abandon();
+      }
+    }
+  }
+
+}
@@ -4,13 +4,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.app.SearchManager;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,19 +33,21 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
   private String mSearchQuery;
   private ArrayList<Tweet> mTweets;
   private TweetArrayAdapter mAdapter;
-  private MemoryImageCache mImageCache;
-  private int mNextPage = 1;
+  // Paging cursor: the highest id the next page may contain, 0 for the
+  // newest page, -1 once there is nothing older.
+  private long mMaxId = 0;
+  private HashSet<String> mTweetIds;
 
   private static class State {
     State(SearchActivity activity) {
       mTweets = activity.mTweets;
-      mNextPage = activity.mNextPage;
-      mImageCache = activity.mImageCache;
+      mMaxId = activity.mMaxId;
+      mTweetIds = activity.mTweetIds;
     }
 
     public ArrayList<Tweet> mTweets;
-    public int mNextPage;
-    public MemoryImageCache mImageCache;
+    public long mMaxId;
+    public HashSet<String> mTweetIds;
   }
 
   // Tasks.
@@ -80,8 +77,10 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
     setTitle(mSearchQuery);
 
     mTweets = new ArrayList<Tweet>();
+    mTweetIds = new HashSet<String>();
     mTweetList = (MyListView) findViewById(R.id.tweet_list);
-    mAdapter = new TweetArrayAdapter(this, mImageCache);
+    // Avatars are read from the disk cache, which prefetching fills.
+    mAdapter = new TweetArrayAdapter(this, getImageManager());
     mTweetList.setAdapter(mAdapter);
     registerForContextMenu(mTweetList);
     mTweetList.setOnNeedMoreListener(this);
@@ -92,7 +91,8 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
 
     if (state != null) {
       mTweets = state.mTweets;
-      mImageCache = state.mImageCache;
+      mMaxId = state.mMaxId;
+      mTweetIds = state.mTweetIds;
       draw();
     } else {
       doSearch();
@@ -142,7 +142,7 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
   }
 
   private void draw() {
-    mAdapter.refresh(mTweets, mImageCache);
+    mAdapter.refresh(mTweets);
   }
 
   private enum RetrieveResult {
@@ -163,7 +163,7 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
   private class SearchTask extends UserTask<Void, Void, RetrieveResult> {
     @Override
     public void onPreExecute() {
-      if (mNextPage == 1) {
+      if (mMaxId == 0) {
         updateProgress("Searching...");
       } else {
         updateProgress("Getting more...");
@@ -174,10 +174,17 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
 
     @Override
     public RetrieveResult doInBackground(Void... params) {
-      JSONArray jsonArray;
+      final HashSet<String> imageUrls = new HashSet<String>();
 
       try {
-        jsonArray = getApi().search(mSearchQuery, mNextPage);
+        getApi().search(mSearchQuery, mMaxId,
+            new TwitterApi.ItemHandler<Tweet>() {
+          public boolean handle(Tweet tweet) {
+            mTweets.add(tweet);
+            imageUrls.add(tweet.profileImageUrl);
+            return !isCancelled();
+          }
+        });
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return RetrieveResult.IO_ERROR;
@@ -189,28 +196,8 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
         return RetrieveResult.IO_ERROR;
       }
 
-      HashSet<String> imageUrls = new HashSet<String>();
-
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
-
-        Tweet tweet;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          tweet = Tweet.createFromSearchApi(jsonObject);
-          mTweets.add(tweet);
-          imageUrls.add(tweet.profileImageUrl);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return RetrieveResult.IO_ERROR;
-        }
-
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
+      if (isCancelled()) {
+        return RetrieveResult.CANCELLED;
       }
 
       addTweets(mTweets);
@@ -221,27 +208,17 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
 
       publishProgress();
 
-      // TODO: what if orientation change?
-      ImageManager imageManager = getImageManager();
-      MemoryImageCache imageCache = new MemoryImageCache();
-
-      for (String imageUrl : imageUrls) {
-        if (!Utils.isEmpty(imageUrl)) {
-          // Fetch image to cache.
-          try {
-            Bitmap bitmap = imageManager.fetchImage(imageUrl);
-            imageCache.put(imageUrl, bitmap);
-          } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-          }
-        }
-
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
+      // Fetch images to cache, side by side.
+      try {
+        getImageManager().prefetch(imageUrls,
+            ImageManager.DEFAULT_PREFETCH_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        return RetrieveResult.CANCELLED;
       }
 
-      addImages(imageCache);
+      if (isCancelled()) {
+        return RetrieveResult.CANCELLED;
+      }
 
       return RetrieveResult.OK;
     }
@@ -351,26 +328,29 @@ public class SearchActivity extends BaseActivity implements MyListView.OnNeedMor
   }
 
   public boolean isLastPage() {
-    return mNextPage == -1;
+    return mMaxId == -1;
   }
 
+  // Skips tweets already shown and moves the cursor below the oldest one.
   private synchronized void addTweets(ArrayList<Tweet> tweets) {
-    if (tweets.size() == 0) {
-      mNextPage = -1;
-      return;
-    }
+    long minId = Long.MAX_VALUE;
+    boolean added = false;
 
-    mTweets.addAll(tweets);
+    for (Tweet tweet : tweets) {
+      minId = Math.min(minId, Long.parseLong(tweet.id));
 
-    ++mNextPage;
-  }
+      if (mTweetIds.add(tweet.id)) {
+        mTweets.add(tweet);
+        added = true;
+      }
+    }
 
-  private synchronized void addImages(MemoryImageCache imageCache) {
-    if (mImageCache == null) {
-      mImageCache = imageCache;
-    } else {
-      mImageCache.putAll(imageCache);
+    if (!added || minId <= 1) {
+      mMaxId = -1;
+      return;
     }
+
+    mMaxId = minId - 1;
   }
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+
+/**
+ * Collapses identical concurrent calls into one. The first caller for a key
+ * runs the call; anyone asking for the same key before it finishes waits
+ * and gets the same result (or exception). If the first caller was
+ * cancelled, the ones waiting start over instead.
+ */
+class SingleFlight {
+  private static final String TAG = "SingleFlight";
+
+  interface Call<T> {
+    public T call() throws Exception;
+  }
+
+  private static class Flight {
+    final CountDownLatch mDone = new CountDownLatch(1);
+    Object mResult;
+    Exception mError;
+  }
+
+  private final HashMap<String, Flight> mFlights = new HashMap<String, Flight>();
+
+  private long mCollapsedCount = 0;
+
+  @SuppressWarnings("unchecked")
+  <T> T execute(String key, Call<T> call) throws Exception {
+    Flight flight;
+    boolean isLeader = false;
+
+    while (true) {
+      synchronized (this) {
+        flight = mFlights.get(key);
+
+        if (flight == null) {
+          flight = new Flight();
+          mFlights.put(key, flight);
+          isLeader = true;
+        } else {
+          ++mCollapsedCount;
+        }
+      }
+
+      if (isLeader) {
+        break;
+      }
+
+      Log.i(TAG, "Joining in-flight call: " + key);
+      flight.mDone.await();
+
+      if (flight.mError instanceof RequestScope.AbortedException) {
+        // The leader was cancelled, which says nothing about this call.
+        Log.i(TAG, "In-flight call was aborted. Trying again: " + key);
+        continue;
+      } else if (flight.mError != null) {
+        throw flight.mError;
+      }
+
+      return (T) flight.mResult;
+    }
+
+    try {
+      T result = call.call();
+      flight.mResult = result;
+
+      return result;
+    } catch (Exception e) {
+      flight.mError = e;
+      throw e;
+    } finally {
+      synchronized (this) {
+        mFlights.remove(key);
+      }
+
+      flight.mDone.countDown();
+    }
+  }
+
+  // Number of calls that were answered by another caller's request.
+  synchronized long getCollapsedCount() {
+    return mCollapsedCount;
+  }
+
+}
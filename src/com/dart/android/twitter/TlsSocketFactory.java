@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Makes HTTPS sockets from one SSLContext with a sized client session cache,
+ * so that a reconnect to a host resumes its TLS session instead of doing a
+ * full handshake.
+ *
+ * Unlike HttpClient's own factory, the TCP connection is made first and TLS
+ * layered over it with the host name and port, which is what the session
+ * cache is keyed on.
+ */
+class TlsSocketFactory implements LayeredSocketFactory {
+  private static final int SESSION_CACHE_SIZE = 16;
+  private static final int SESSION_TIMEOUT_SECS = 60 * 60;
+
+  private final javax.net.ssl.SSLSocketFactory mFactory;
+  private final X509HostnameVerifier mHostnameVerifier =
+      SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+
+  TlsSocketFactory() throws GeneralSecurityException {
+    SSLContext context = SSLContext.getInstance("TLS");
+    // The platform's default key and trust managers.
+    context.init(null, null, null);
+
+    SSLSessionContext sessions = context.getClientSessionContext();
+
+    if (sessions != null) {
+      sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+      sessions.setSessionTimeout(SESSION_TIMEOUT_SECS);
+    }
+
+    mFactory = context.getSocketFactory();
+  }
+
+  // Unconnected and plain; connectSocket() adds TLS once it is connected.
+  public Socket createSocket() {
+    return new Socket();
+  }
+
+  public Socket connectSocket(Socket sock, String host, int port,
+      InetAddress localAddress, int localPort, HttpParams params)
+      throws IOException, UnknownHostException, ConnectTimeoutException {
+    Socket plain = sock != null ? sock : createSocket();
+
+    if (localAddress != null || localPort > 0) {
+      plain.bind(new InetSocketAddress(localAddress, Math.max(0, localPort)));
+    }
+
+    try {
+      plain.connect(new InetSocketAddress(host, port),
+          HttpConnectionParams.getConnectionTimeout(params));
+    } catch (SocketTimeoutException e) {
+      throw new ConnectTimeoutException("Connect to " + host + ":" + port
+          + " timed out");
+    }
+
+    plain.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+
+    return createSocket(plain, host, port, true);
+  }
+
+  public Socket createSocket(Socket socket, String host, int port,
+      boolean autoClose) throws IOException, UnknownHostException {
+    SSLSocket ssl = (SSLSocket) mFactory.createSocket(socket, host, port,
+        autoClose);
+
+    // Handshakes, resuming a cached session if there is one.
+    mHostnameVerifier.verify(host, ssl);
+
+    return ssl;
+  }
+
+  public boolean isSecure(Socket sock) throws IllegalArgumentException {
+    if (!(sock instanceof SSLSocket)) {
+      throw new IllegalArgumentException("Socket not created by this factory.");
+    }
+
+    if (sock.isClosed()) {
+      throw new IllegalArgumentException("Socket is closed.");
+    }
+
+    return true;
+  }
+
+}
@@ -16,6 +16,7 @@
 
 package com.dart.android.twitter;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -27,7 +28,27 @@ public class Tweet extends Message {
   @SuppressWarnings("unused")
   private static final String TAG = "Tweet";
 
-  public String source;
+  private static final Pattern TAG_PATTERN = Pattern.compile("\\<.*?>");
+
+  // The source is kept as it came off the wire and cleaned up the first
+  // time it is asked for. Tweets that are stored get that done by the
+  // database writer, off the UI thread; search results and user timelines
+  // only pay for the rows that are shown. Two threads racing here both
+  // compute the same string, which is harmless.
+  private String mRawSource;
+  private volatile String mSource;
+
+  public String getSource() {
+    String source = mSource;
+
+    if (source == null && mRawSource != null) {
+      source = TAG_PATTERN.matcher(Utils.decodeTwitterJson(mRawSource))
+          .replaceAll("");
+      mSource = source;
+    }
+
+    return source;
+  }
 
   public boolean isReply() {
     // TODO: this is so wrong.
@@ -49,8 +70,54 @@ public class Tweet extends Message {
     tweet.screenName = Utils.decodeTwitterJson(user.getString("screen_name"));
     tweet.profileImageUrl = user.getString("profile_image_url");
     tweet.userId = user.getString("id");
-    tweet.source = Utils.decodeTwitterJson(jsonObject.getString("source")).
-        replaceAll("\\<.*?>", "");
+    tweet.mRawSource = jsonObject.getString("source");
+
+    return tweet;
+  }
+
+  /**
+   * Reads the next status object straight off the parser, skipping the many
+   * fields we have no use for instead of building a JSONObject of them.
+   * If user is not null, it is filled in with the author's profile.
+   */
+  public static Tweet create(JsonPullParser parser, User user)
+      throws IOException {
+    Tweet tweet = new Tweet();
+    boolean hasUser = false;
+
+    parser.beginObject();
+
+    while (parser.hasNext()) {
+      String name = parser.nextName();
+
+      if ("id".equals(name)) {
+        tweet.id = parser.nextLong() + "";
+      } else if ("text".equals(name)) {
+        tweet.text = Utils.decodeTwitterJson(parser.nextString());
+      } else if ("created_at".equals(name)) {
+        tweet.createdAt = Utils.parseDateTime(parser.nextString());
+      } else if ("source".equals(name)) {
+        tweet.mRawSource = parser.nextStringOrNull();
+      } else if ("user".equals(name)) {
+        User author = User.create(parser);
+        tweet.screenName = author.screenName;
+        tweet.profileImageUrl = author.profileImageUrl;
+        tweet.userId = author.id;
+        hasUser = true;
+
+        if (user != null) {
+          user.copyFrom(author);
+        }
+      } else {
+        parser.skipValue();
+      }
+    }
+
+    parser.endObject();
+
+    if (tweet.id == null || tweet.text == null || !hasUser) {
+      throw new IOException("Could not parse JSON.");
+    }
 
     return tweet;
   }
@@ -65,8 +132,44 @@ public class Tweet extends Message {
     tweet.screenName = Utils.decodeTwitterJson(jsonObject.getString("from_user"));
     tweet.profileImageUrl = jsonObject.getString("profile_image_url");
     tweet.userId = jsonObject.getString("from_user_id");
-    tweet.source = Utils.decodeTwitterJson(jsonObject.getString("source")).
-        replaceAll("\\<.*?>", "");
+    tweet.mRawSource = jsonObject.getString("source");
+
+    return tweet;
+  }
+
+  public static Tweet createFromSearchApi(JsonPullParser parser)
+      throws IOException {
+    Tweet tweet = new Tweet();
+
+    parser.beginObject();
+
+    while (parser.hasNext()) {
+      String name = parser.nextName();
+
+      if ("id".equals(name)) {
+        tweet.id = parser.nextLong() + "";
+      } else if ("text".equals(name)) {
+        tweet.text = Utils.decodeTwitterJson(parser.nextString());
+      } else if ("created_at".equals(name)) {
+        tweet.createdAt = Utils.parseSearchApiDateTime(parser.nextString());
+      } else if ("from_user".equals(name)) {
+        tweet.screenName = Utils.decodeTwitterJson(parser.nextString());
+      } else if ("profile_image_url".equals(name)) {
+        tweet.profileImageUrl = parser.nextString();
+      } else if ("from_user_id".equals(name)) {
+        tweet.userId = parser.nextString();
+      } else if ("source".equals(name)) {
+        tweet.mRawSource = parser.nextStringOrNull();
+      } else {
+        parser.skipValue();
+      }
+    }
+
+    parser.endObject();
+
+    if (tweet.id == null || tweet.text == null || tweet.screenName == null) {
+      throw new IOException("Could not parse JSON.");
+    }
 
     return tweet;
   }
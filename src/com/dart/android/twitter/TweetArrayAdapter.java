@@ -18,13 +18,20 @@ public class TweetArrayAdapter extends BaseAdapter {
   protected LayoutInflater mInflater;
   protected StringBuilder mMetaBuilder;
   protected ImageCache mImageCache;
+  private AvatarLoader mAvatarLoader;
 
   public TweetArrayAdapter(Context context, ImageCache imageCache) {
     mTweets = new ArrayList<Tweet>();
     mContext = context;
     mInflater = LayoutInflater.from(mContext);
     mMetaBuilder = new StringBuilder();
+    setImageCache(imageCache);
+  }
+
+  private void setImageCache(ImageCache imageCache) {
     mImageCache = imageCache;
+    mAvatarLoader = imageCache == null ? null : new AvatarLoader(imageCache,
+        R.drawable.blank_profile);
   }
 
   @Override
@@ -73,23 +80,21 @@ public class TweetArrayAdapter extends BaseAdapter {
     holder.tweetUserText.setText(tweet.screenName);
     Utils.setTweetText(holder.tweetText, tweet.text);
 
-    if (mImageCache != null) {
-      String profileImageUrl = tweet.profileImageUrl;
-
-      if (!Utils.isEmpty(profileImageUrl)) {
-        holder.profileImage.setImageBitmap(mImageCache.get(
-            profileImageUrl));
-      }
+    if (mAvatarLoader != null) {
+      mAvatarLoader.bind(holder.profileImage, tweet.profileImageUrl);
     }
 
     holder.metaText.setText(Tweet.buildMetaText(mMetaBuilder,
-        tweet.createdAt, tweet.source));
+        tweet.createdAt, tweet.getSource()));
 
     return view;
   }
 
   public void refresh(ArrayList<Tweet> tweets, ImageCache imageCache) {
-    mImageCache = imageCache;
+    if (imageCache != mImageCache) {
+      setImageCache(imageCache);
+    }
+
     refresh(tweets);
   }
 
@@ -19,12 +19,11 @@ package com.dart.android.twitter;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.content.Intent;
@@ -75,10 +74,14 @@ public class TwitterActivity extends BaseActivity {
   private UserTask<Void, Void, RetrieveResult> mRetrieveTask;
   private UserTask<Void, Void, SendResult> mSendTask;
   private UserTask<Void, Void, RetrieveResult> mFollowersRetrieveTask;
+  private Future<Void> mProfilePrefetch;
 
   // Refresh data at startup if last refresh was this long ago or greater.
   private static final long REFRESH_THRESHOLD = 5 * 60 * 1000;
 
+  // Look up a profile again if it was stored this long ago or greater.
+  private static final long PROFILE_REFRESH_THRESHOLD = 24 * 60 * 60 * 1000;
+
   // Refresh followers if last refresh was this long ago or greater.
   private static final long FOLLOWERS_REFRESH_THRESHOLD = 12 * 60 * 60 * 1000;
 
@@ -300,6 +303,43 @@ public class TwitterActivity extends BaseActivity {
 
     MenuItem item = menu.add(0, CONTEXT_DM_ID, 0, R.string.dm);
     item.setEnabled(getDb().isFollower(userId));
+
+    // The user may well be about to open the profile, so have it ready.
+    doPrefetchProfile(user);
+  }
+
+  private void doPrefetchProfile(final String screenName) {
+    if (mProfilePrefetch != null && !mProfilePrefetch.isDone()) {
+      Log.w(TAG, "Already prefetching a profile.");
+      return;
+    }
+
+    final TwitterDbAdapter db = getDb();
+    final ImageManager imageManager = getImageManager();
+    final List<String> users = Collections.singletonList(screenName);
+
+    // Nobody waits on this, so it goes through the shared background client
+    // rather than holding a UserTask thread.
+    mProfilePrefetch = getAsyncApi().submit(
+        new AsyncTwitterApi.Call<Void>() {
+      public Void call(TwitterApi api) throws Exception {
+        // Checked here rather than on the UI thread, since it is a query.
+        if (db.isUserFresh(screenName, PROFILE_REFRESH_THRESHOLD)) {
+          return null;
+        }
+
+        ArrayList<User> found = api.lookupUsers(users);
+        db.storeUsers(found);
+
+        for (User user : found) {
+          if (!Utils.isEmpty(user.profileImageUrl)) {
+            imageManager.put(user.profileImageUrl);
+          }
+        }
+
+        return null;
+      }
+    }, null);
   }
 
   @Override
@@ -355,6 +395,8 @@ public class TwitterActivity extends BaseActivity {
       super(context, cursor);
 
       mInflater = LayoutInflater.from(context);
+      mAvatarLoader = new AvatarLoader(TwitterApplication.mImageManager,
+          R.drawable.blank_profile);
 
       mUserTextColumn = cursor.getColumnIndexOrThrow(TwitterDbAdapter.KEY_USER);
       mTextColumn = cursor.getColumnIndexOrThrow(TwitterDbAdapter.KEY_TEXT);
@@ -368,6 +410,7 @@ public class TwitterActivity extends BaseActivity {
     }
 
     private LayoutInflater mInflater;
+    private AvatarLoader mAvatarLoader;
 
     private int mUserTextColumn;
     private int mTextColumn;
@@ -405,12 +448,8 @@ public class TwitterActivity extends BaseActivity {
       holder.tweetUserText.setText(cursor.getString(mUserTextColumn));
       Utils.setTweetText(holder.tweetText, cursor.getString(mTextColumn));
 
-      String profileImageUrl = cursor.getString(mProfileImageUrlColumn);
-
-      if (!Utils.isEmpty(profileImageUrl)) {
-        holder.profileImage.setImageBitmap(TwitterApplication.mImageManager.get(
-            profileImageUrl));
-      }
+      mAvatarLoader.bind(holder.profileImage, cursor
+          .getString(mProfileImageUrlColumn));
 
       try {
         Date createdAt = TwitterDbAdapter.DB_DATE_FORMATTER.parse(cursor
@@ -436,32 +475,41 @@ public class TwitterActivity extends BaseActivity {
     mTweetList.setSelection(0);
   }
 
-  private void enableEntry() {
-    mTweetEdit.setEnabled(true);
-    mSendButton.setEnabled(true);
-  }
+  // Actions.
+
+  private void doSend() {
+    String status = mTweetEdit.getText().toString();
+
+    if (Utils.isEmpty(status)) {
+      return;
+    }
+
+    // Show it right away. It goes out in the background.
+    Outbox.queueStatus(getDb(), getApi().getUsername(), status);
+    mTweetEdit.setText("");
+    draw();
+    goTop();
 
-  private void disableEntry() {
-    mTweetEdit.setEnabled(false);
-    mSendButton.setEnabled(false);
+    doDrainOutbox();
   }
 
-  // Actions.
+  // Set when something is queued while a drain is running, which may have
+  // looked at the table already. The drain is run again when it finishes.
+  private boolean mIsDrainPending = false;
 
-  private void doSend() {
+  private void doDrainOutbox() {
     if (mSendTask != null && mSendTask.getStatus() == UserTask.Status.RUNNING) {
-      Log.w(TAG, "Already sending.");
-    } else {
-      String status = mTweetEdit.getText().toString();
-
-      if (!Utils.isEmpty(status)) {
-        mSendTask = new SendTask().execute();
-      }
+      Log.i(TAG, "Already sending. Draining again afterwards.");
+      mIsDrainPending = true;
+      return;
     }
+
+    mIsDrainPending = false;
+    mSendTask = new SendTask().execute();
   }
 
   private enum SendResult {
-    OK, IO_ERROR, AUTH_ERROR, CANCELLED
+    OK, IO_ERROR, AUTH_ERROR, CANCELLED, REJECTED, FAILED
   }
 
   private class SendTask extends UserTask<Void, Void, SendResult> {
@@ -472,33 +520,17 @@ public class TwitterActivity extends BaseActivity {
 
     @Override
     public SendResult doInBackground(Void... params) {
-      try {
-        String status = mTweetEdit.getText().toString();
-        JSONObject jsonObject = getApi().update(status);
-        Tweet tweet = Tweet.create(jsonObject);
-
-        if (!Utils.isEmpty(tweet.profileImageUrl)) {
-          // Fetch image to cache.
-          try {
-            getImageManager().put(tweet.profileImageUrl);
-          } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-          }
-        }
+      Outbox.Result result = Outbox.drain(getApi(), getDb(),
+          getImageManager());
 
-        getDb().createTweet(tweet, false);
-      } catch (IOException e) {
-        Log.e(TAG, e.getMessage(), e);
+      if (result == Outbox.Result.IO_ERROR) {
         return SendResult.IO_ERROR;
-      } catch (AuthException e) {
-        Log.i(TAG, "Invalid authorization.");
+      } else if (result == Outbox.Result.AUTH_ERROR) {
         return SendResult.AUTH_ERROR;
-      } catch (JSONException e) {
-        Log.w(TAG, "Could not parse JSON after sending update.");
-        return SendResult.IO_ERROR;
-      } catch (ApiException e) {
-        Log.e(TAG, e.getMessage(), e);
-        return SendResult.IO_ERROR;
+      } else if (result == Outbox.Result.REJECTED) {
+        return SendResult.REJECTED;
+      } else if (result == Outbox.Result.FAILED) {
+        return SendResult.FAILED;
       }
 
       return SendResult.OK;
@@ -515,30 +547,47 @@ public class TwitterActivity extends BaseActivity {
 
       if (result == SendResult.AUTH_ERROR) {
         logout();
+        return;
       } else if (result == SendResult.OK) {
         onSendSuccess();
+      } else if (result == SendResult.REJECTED) {
+        onSendRejected();
       } else if (result == SendResult.IO_ERROR) {
         onSendFailure();
+      } else if (result == SendResult.FAILED) {
+        onSendGaveUp();
+      }
+
+      if (mIsDrainPending) {
+        // This task still counts as running, so start the next directly.
+        mIsDrainPending = false;
+        mSendTask = new SendTask().execute();
       }
     }
   }
 
   private void onSendBegin() {
-    disableEntry();
     updateProgress("Updating status...");
   }
 
   private void onSendSuccess() {
-    mTweetEdit.setText("");
     updateProgress("");
-    enableEntry();
     draw();
-    goTop();
+  }
+
+  private void onSendRejected() {
+    updateProgress("Status update was refused");
+    draw();
   }
 
   private void onSendFailure() {
-    updateProgress("Unable to update status");
-    enableEntry();
+    updateProgress("Unable to update status. Will retry.");
+    draw();
+  }
+
+  private void onSendGaveUp() {
+    updateProgress("Unable to update status. Gave up.");
+    draw();
   }
 
   private void doRetrieve() {
@@ -573,12 +622,27 @@ public class TwitterActivity extends BaseActivity {
 
     @Override
     public RetrieveResult doInBackground(Void... params) {
-      JSONArray jsonArray;
-
       long maxId = getDb().fetchMaxId();
 
+      final ArrayList<Tweet> tweets = new ArrayList<Tweet>();
+      final HashSet<String> imageUrls = new HashSet<String>();
+      // Authors are stored too, so their pages can open without waiting.
+      final ArrayList<User> users = new ArrayList<User>();
+
       try {
-        jsonArray = getApi().getTimelineSinceId(maxId);
+        getApi().getTimelineSinceId(maxId, new TwitterApi.ItemHandler<Tweet>() {
+          public boolean handle(Tweet tweet) {
+            tweets.add(tweet);
+            imageUrls.add(tweet.profileImageUrl);
+
+            return !isCancelled();
+          }
+        }, new TwitterApi.ItemHandler<User>() {
+          public boolean handle(User user) {
+            users.add(user);
+            return true;
+          }
+        });
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return RetrieveResult.IO_ERROR;
@@ -590,33 +654,15 @@ public class TwitterActivity extends BaseActivity {
         return RetrieveResult.IO_ERROR;
       }
 
-      ArrayList<Tweet> tweets = new ArrayList<Tweet>();
-      HashSet<String> imageUrls = new HashSet<String>();
-
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
-
-        Tweet tweet;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          tweet = Tweet.create(jsonObject);
-          tweets.add(tweet);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return RetrieveResult.IO_ERROR;
-        }
-
-        imageUrls.add(tweet.profileImageUrl);
-
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
+      if (isCancelled()) {
+        return RetrieveResult.CANCELLED;
       }
 
+      // Only a whole page is stored. The page is newest first, so storing
+      // part of it would move the since_id of the next refresh past the
+      // tweets that never arrived.
       getDb().addTweets(tweets, false);
+      getDb().storeUsers(users);
 
       if (isCancelled()) {
         return RetrieveResult.CANCELLED;
@@ -624,19 +670,22 @@ public class TwitterActivity extends BaseActivity {
 
       publishProgress();
 
-      for (String imageUrl : imageUrls) {
-        if (!Utils.isEmpty(imageUrl)) {
-          // Fetch image to cache.
-          try {
-            getImageManager().put(imageUrl);
-          } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-          }
-        }
+      // The radio is up anyway, so send anything still queued.
+      if (getDb().fetchOutboxCount() > 0) {
+        Outbox.drain(getApi(), getDb(), getImageManager());
+        publishProgress();
+      }
 
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
+      // Fetch images to cache, side by side.
+      try {
+        getImageManager().prefetch(imageUrls,
+            ImageManager.DEFAULT_PREFETCH_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        return RetrieveResult.CANCELLED;
+      }
+
+      if (isCancelled()) {
+        return RetrieveResult.CANCELLED;
       }
 
       return RetrieveResult.OK;
@@ -663,9 +712,23 @@ public class TwitterActivity extends BaseActivity {
   private class FollowersTask extends UserTask<Void, Void, RetrieveResult> {
     @Override
     public RetrieveResult doInBackground(Void... params) {
+      if (!getApi().canRunInBackground()) {
+        // Try again next time rather than eat into the user's budget.
+        Log.i(TAG, "Rate limit is low. Deferring followers sync.");
+        return RetrieveResult.CANCELLED;
+      }
+
       try {
-        ArrayList<Long> followers = getApi().getFollowersIds();
-        getDb().syncFollowers(followers);
+        TwitterApi.FollowersIds followers = getApi()
+            .getFollowersIdsIfModified();
+
+        if (followers == null) {
+          Log.i(TAG, "Followers not modified.");
+        } else {
+          getDb().syncFollowers(followers.ids);
+          // Only now is it safe to be told they haven't changed.
+          getApi().markFollowersSynced(followers);
+        }
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return RetrieveResult.IO_ERROR;
@@ -16,70 +16,97 @@
 
 package com.dart.android.twitter;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.AuthSchemeRegistry;
 import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.auth.BasicSchemeFactory;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HTTP;
-import org.json.JSONArray;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.util.Log;
+import android.util.Xml;
 
 public class TwitterApi {
   private static final String TAG = "TwitterApi";
 
-  private static final String UPDATE_URL = "http://twitter.com/statuses/update.json";
-  private static final String VERIFY_CREDENTIALS_URL = "https://twitter.com/account/verify_credentials.json";
-  private static final String FRIENDS_TIMELINE_URL = "http://twitter.com/statuses/friends_timeline.json";
-  private static final String DIRECT_MESSAGES_URL = "http://twitter.com/direct_messages.json";
-  private static final String DIRECT_MESSAGES_SENT_URL = "http://twitter.com/direct_messages/sent.json";
-  private static final String DIRECT_MESSAGES_DESTROY_URL = "http://twitter.com/direct_messages/destroy/%d.json";
-  private static final String DIRECT_MESSAGES_NEW_URL = "http://twitter.com/direct_messages/new.json";
-  private static final String FOLLOWERS_IDS_URL = "http://twitter.com/followers/ids.json";
-  private static final String USER_TIMELINE_URL = "http://twitter.com/statuses/user_timeline.json";
-  private static final String FRIENDSHIPS_EXISTS_URL = "http://twitter.com/friendships/exists.json";
-  private static final String FRIENDSHIPS_CREATE_URL = "http://twitter.com/friendships/create/%d.json";
-  private static final String FRIENDSHIPS_DESTROY_URL = "http://twitter.com/friendships/destroy/%d.json";
-  private static final String SEARCH_URL = "http://search.twitter.com/search.json";
-
-  private static final String UPLOAD_AND_POST_URL = "http://twitpic.com/api/uploadAndPost";
-
-  private static final String TWITTER_HOST = "twitter.com";
+  // Default endpoints. See setBaseUrls().
+  public static final String DEFAULT_API_BASE = "http://twitter.com";
+  public static final String DEFAULT_SECURE_API_BASE = "https://twitter.com";
+  public static final String DEFAULT_SEARCH_BASE = "http://search.twitter.com";
+  public static final String DEFAULT_UPLOAD_BASE = "http://twitpic.com/api";
+
+  private static final String UPDATE_PATH = "/statuses/update.json";
+  private static final String VERIFY_CREDENTIALS_PATH = "/account/verify_credentials.json";
+  private static final String FRIENDS_TIMELINE_PATH = "/statuses/friends_timeline.json";
+  private static final String DIRECT_MESSAGES_PATH = "/direct_messages.json";
+  private static final String DIRECT_MESSAGES_SENT_PATH = "/direct_messages/sent.json";
+  private static final String DIRECT_MESSAGES_DESTROY_PATH = "/direct_messages/destroy/%d.json";
+  private static final String DIRECT_MESSAGES_NEW_PATH = "/direct_messages/new.json";
+  private static final String FOLLOWERS_IDS_PATH = "/followers/ids.json";
+  private static final String USER_TIMELINE_PATH = "/statuses/user_timeline.json";
+  private static final String FRIENDSHIPS_EXISTS_PATH = "/friendships/exists.json";
+  private static final String FRIENDSHIPS_CREATE_PATH = "/friendships/create/%d.json";
+  private static final String FRIENDSHIPS_DESTROY_PATH = "/friendships/destroy/%d.json";
+  private static final String HELP_TEST_PATH = "/help/test.json";
+  private static final String USERS_LOOKUP_PATH = "/users/lookup.json";
+  private static final String SEARCH_PATH = "/search.json";
+
+  private static final String UPLOAD_AND_POST_PATH = "/uploadAndPost";
+
+  private String mApiBase = DEFAULT_API_BASE;
+  // Credentials are checked over SSL when talking to the real service.
+  private String mSecureApiBase = DEFAULT_SECURE_API_BASE;
+  private String mSearchBase = DEFAULT_SEARCH_BASE;
+  private String mUploadBase = DEFAULT_UPLOAD_BASE;
 
   private DefaultHttpClient mClient;
   private AuthScope mAuthScope;
@@ -87,12 +114,77 @@ public class TwitterApi {
   private String mUsername;
   private String mPassword;
 
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+  // Parsed results for conditional GETs, most recently used last. Their
+  // validators are only kept here, since they are no use without the body.
+  private static final int MAX_REVALIDATABLE_RESULTS = 16;
+
+  private final LinkedHashMap<String, Revalidatable> mRevalidatableResults =
+      new LinkedHashMap<String, Revalidatable>(MAX_REVALIDATABLE_RESULTS,
+          0.75f, true) {
+    private static final long serialVersionUID = 4076213470458719024L;
+
+    @Override
+    protected boolean removeEldestEntry(
+        Map.Entry<String, Revalidatable> eldest) {
+      return size() > MAX_REVALIDATABLE_RESULTS;
+    }
+  };
+
+  private static class Revalidatable {
+    final Object result;
+    final String[] validators;
+
+    Revalidatable(Object result, String[] validators) {
+      this.result = result;
+      this.validators = validators;
+    }
+  }
+
+  private ValidatorStore mValidatorStore;
+
+  private RateLimiter mRateLimiter = new RateLimiter();
+
+  // Hedging is left off since every extra GET counts against the rate limit.
+  private RetryPolicy mRetryPolicy = new RetryPolicy();
+
+  // Identical GETs in flight at the same time share one request.
+  private final SingleFlight mSingleFlight = new SingleFlight();
+
+  // Friendship states looked up recently, keyed by "a|b" in lower case.
+  // Following or unfollowing updates these locally.
+  private static final long FRIENDSHIP_TTL_MS = 5 * 60 * 1000;
+
+  private static class Friendship {
+    final boolean follows;
+    final long time;
+
+    Friendship(boolean follows, long time) {
+      this.follows = follows;
+      this.time = time;
+    }
+  }
+
+  private final HashMap<String, Friendship> mFriendships =
+      new HashMap<String, Friendship>();
+
   private static final String METHOD_GET = "GET";
   private static final String METHOD_POST = "POST";
   private static final String METHOD_DELETE = "DELETE";
 
   public static final int RETRIEVE_LIMIT = 50;
 
+  // Bulk deletes run this many requests at once, which matches the
+  // connection pool's per host limit.
+  private static final int MAX_BULK_WORKERS = 4;
+
+  // The most profiles users/lookup will return at once.
+  private static final int MAX_LOOKUP_USERS = 100;
+
   public class AuthException extends Exception {
     private static final long serialVersionUID = 1703735789572778599L;
   }
@@ -109,11 +201,81 @@ public class TwitterApi {
     private static final long serialVersionUID = -3755642135241860532L;
   }
 
+  /**
+   * Receives items one at a time as they are decoded from a response stream.
+   * Return false to stop reading the rest of the response.
+   */
+  public interface ItemHandler<T> {
+    public boolean handle(T item);
+  }
+
+  /**
+   * Told about every finished response body. wireBytes is what came over
+   * the network, contentBytes is the size after decompression.
+   */
+  public interface TransferListener {
+    public void onTransferComplete(String url, long wireBytes,
+        long contentBytes);
+  }
+
+  private TransferListener mTransferListener;
+
+  /**
+   * Persists ETag and Last-Modified validators, keyed by URL, so that
+   * conditional requests survive a restart. Only used for results that are
+   * themselves persisted, i.e. the followers ids.
+   */
+  public interface ValidatorStore {
+    // Returns { etag, lastModified } or null. Either value may be null.
+    public String[] fetchValidators(String url);
+
+    public void storeValidators(String url, String etag, String lastModified);
+  }
+
+  // Sends Basic credentials with the first request to a host we have them
+  // for. Otherwise HttpClient waits for a 401 challenge first, which costs
+  // a whole extra round trip on every request.
+  private static final HttpRequestInterceptor PREEMPTIVE_AUTH =
+      new HttpRequestInterceptor() {
+    public void process(HttpRequest request, HttpContext context)
+        throws HttpException, IOException {
+      AuthState authState = (AuthState) context
+          .getAttribute(ClientContext.TARGET_AUTH_STATE);
+      CredentialsProvider provider = (CredentialsProvider) context
+          .getAttribute(ClientContext.CREDS_PROVIDER);
+      HttpHost host = (HttpHost) context
+          .getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+
+      if (authState == null || provider == null || host == null
+          || authState.getAuthScheme() != null) {
+        return;
+      }
+
+      Credentials credentials = provider.getCredentials(new AuthScope(host
+          .getHostName(), host.getPort()));
+
+      if (credentials != null
+          && !Utils.isEmpty(credentials.getUserPrincipal().getName())) {
+        authState.setAuthScheme(new BasicScheme());
+        authState.setCredentials(credentials);
+      }
+    }
+  };
+
   private static final int CONNECTION_TIMEOUT_MS = 30 * 1000;
   private static final int SOCKET_TIMEOUT_MS = 30 * 1000;
 
   public TwitterApi() {
-    prepareHttpClient();
+    this(getConnectionManager(), getConnectionManager().getParams());
+  }
+
+  /**
+   * Uses the given connection manager as the transport, e.g. one tuned
+   * differently from the shared pool when benchmarking.
+   */
+  public TwitterApi(ClientConnectionManager connectionManager,
+      HttpParams params) {
+    prepareHttpClient(connectionManager, params);
   }
 
   public static boolean isValidCredentials(String username, String password) {
@@ -128,15 +290,151 @@ public class TwitterApi {
     return mUsername;
   }
 
-  private void prepareHttpClient() {
-    mAuthScope = new AuthScope(TWITTER_HOST, AuthScope.ANY_PORT);
-    mClient = new DefaultHttpClient();
+  // All TwitterApi instances share one connection pool. Each still has its
+  // own client so that credentials are not shared.
+  public static PooledConnectionManager getConnectionManager() {
+    return PooledConnectionManager.getInstance();
+  }
+
+  private void prepareHttpClient(ClientConnectionManager connectionManager,
+      HttpParams params) {
+    mAuthScope = createAuthScope(mApiBase);
+    mClient = new DefaultHttpClient(connectionManager, params);
     BasicScheme basicScheme = new BasicScheme();
     AuthSchemeRegistry authRegistry = new AuthSchemeRegistry();
     authRegistry
         .register(basicScheme.getSchemeName(), new BasicSchemeFactory());
     mClient.setAuthSchemes(authRegistry);
     mClient.setCredentialsProvider(new BasicCredentialsProvider());
+    mClient.addRequestInterceptor(PREEMPTIVE_AUTH, 0);
+
+    // Compressed JSON is typically a fifth of the size.
+    mClient.addRequestInterceptor(ContentEncoding.ACCEPT_ENCODING);
+    mClient.addResponseInterceptor(ContentEncoding
+        .createDecoder(new TransferListener() {
+      public void onTransferComplete(String url, long wireBytes,
+          long contentBytes) {
+        NetworkStats.getInstance().onTransferComplete(url, wireBytes,
+            contentBytes);
+
+        TransferListener listener = mTransferListener;
+
+        if (listener != null) {
+          listener.onTransferComplete(url, wireBytes, contentBytes);
+        }
+      }
+    }));
+  }
+
+  private static AuthScope createAuthScope(String base) {
+    return new AuthScope(URI.create(base).getHost(), AuthScope.ANY_PORT);
+  }
+
+  /**
+   * Points the API at other servers, e.g. a MockTwitterServer. Each base is
+   * a scheme, host, optional port and path prefix with no trailing slash.
+   * Credentials are then verified over apiBase as well.
+   */
+  public void setBaseUrls(String apiBase, String searchBase,
+      String uploadBase) {
+    mApiBase = apiBase;
+    mSecureApiBase = apiBase;
+    mSearchBase = searchBase;
+    mUploadBase = uploadBase;
+
+    // Credentials are only sent to the API host.
+    mClient.getCredentialsProvider().clear();
+    mAuthScope = createAuthScope(apiBase);
+
+    if (mUsername != null) {
+      setCredentials(mUsername, mPassword);
+    }
+
+    clearFriendships();
+  }
+
+  public String getApiBase() {
+    return mApiBase;
+  }
+
+  public String getSearchBase() {
+    return mSearchBase;
+  }
+
+  public String getUploadBase() {
+    return mUploadBase;
+  }
+
+  // The endpoints worth connecting to ahead of time with warmUp().
+  public ArrayList<String> getWarmUpUrls() {
+    ArrayList<String> urls = new ArrayList<String>();
+    urls.add(mSecureApiBase + HELP_TEST_PATH);
+
+    if (!mApiBase.equals(mSecureApiBase)) {
+      urls.add(mApiBase + HELP_TEST_PATH);
+    }
+
+    urls.add(mSearchBase + SEARCH_PATH);
+
+    return urls;
+  }
+
+  /**
+   * Sends a HEAD to url and throws the answer away, so that the host name
+   * is resolved and a connection, with its TLS session for HTTPS, is left
+   * in the pool for the first real request. Errors are only logged.
+   */
+  public void warmUp(String url) {
+    Log.i(TAG, "Warming up " + url);
+
+    RequestScope scope = RequestScope.open();
+
+    try {
+      HttpHead head = new HttpHead(url);
+      HttpConnectionParams.setConnectionTimeout(head.getParams(),
+          CONNECTION_TIMEOUT_MS);
+      HttpConnectionParams.setSoTimeout(head.getParams(), SOCKET_TIMEOUT_MS);
+
+      consume(mClient.execute(scope.add(head)));
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Invalid URL: " + url);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not warm up " + url + ": " + e.getMessage());
+    } finally {
+      scope.close();
+    }
+  }
+
+  // Search is metered separately from the rest of the API.
+  private String getRateLimitFamily(String url) {
+    return url.startsWith(mSearchBase) ? RateLimiter.FAMILY_SEARCH
+        : RateLimiter.FAMILY_REST;
+  }
+
+  public void setTransferListener(TransferListener listener) {
+    mTransferListener = listener;
+  }
+
+  public void setValidatorStore(ValidatorStore store) {
+    mValidatorStore = store;
+  }
+
+  public void setRetryPolicy(RetryPolicy policy) {
+    mRetryPolicy = policy;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return mRetryPolicy;
+  }
+
+  public RateLimiter getRateLimiter() {
+    return mRateLimiter;
+  }
+
+  // Background work (service polls, follower syncs) should check this first
+  // so that some of the hourly budget is left for the user.
+  public boolean canRunInBackground() {
+    return mRateLimiter.canRunInBackground(RateLimiter.FAMILY_REST);
   }
 
   public void setCredentials(String username, String password) {
@@ -146,85 +444,144 @@ public class TwitterApi {
         new UsernamePasswordCredentials(username, password));
   }
 
-  public void postTwitPic(File file, String message) throws IOException,
-      AuthException, ApiException {
+  /**
+   * Something to upload. getLength() may return -1 if the size is unknown,
+   * in which case the source is read once beforehand to measure it.
+   */
+  public interface UploadSource {
+    public InputStream open() throws IOException;
+
+    public long getLength();
+
+    public String getName();
+
+    public String getContentType();
+  }
+
+  // Called on the uploading thread as bytes are written.
+  public interface ProgressListener {
+    public void onProgress(long bytesSent, long totalBytes);
+  }
+
+  public void postTwitPic(UploadSource source, String message,
+      ProgressListener listener) throws IOException, AuthException,
+      ApiException {
     URI uri;
 
     try {
-      uri = new URI(UPLOAD_AND_POST_URL);
+      uri = new URI(mUploadBase + UPLOAD_AND_POST_PATH);
     } catch (URISyntaxException e) {
       Log.e(TAG, e.getMessage(), e);
       throw new IOException("Invalid URL.");
     }
 
-    DefaultHttpClient client = new DefaultHttpClient();
+    ArrayList<String[]> fields = new ArrayList<String[]>();
+    fields.add(new String[] { "username", mUsername });
+    fields.add(new String[] { "password", mPassword });
+    fields.add(new String[] { "message", message });
+
     HttpPost post = new HttpPost(uri);
-    MultipartEntity entity = new MultipartEntity();
-    entity.addPart("username", new StringBody(mUsername));
-    entity.addPart("password", new StringBody(mPassword));
-    // Don't try this. Server does not appear to support chunking.
-    // entity.addPart("media", new InputStreamBody(imageStream, "media"));
-    entity.addPart("media", new FileBody(file));
-    entity.addPart("message", new StringBody(message));
-    post.setEntity(entity);
+    // The server does not support chunking, so the entity has a known length.
+    post.setEntity(new MultipartUploadEntity(fields, "media", source,
+        listener));
+    post.getParams().setBooleanParameter("http.protocol.expect-continue",
+        false);
 
     HttpConnectionParams.setConnectionTimeout(post.getParams(),
         CONNECTION_TIMEOUT_MS);
     HttpConnectionParams.setSoTimeout(post.getParams(), SOCKET_TIMEOUT_MS);
 
-    HttpResponse response;
+    // Cancelling the upload aborts it rather than sending the rest.
+    RequestScope scope = RequestScope.open();
+    NetworkStats.Call call = NetworkStats.getInstance().begin(uri.toString());
 
     try {
-      response = client.execute(post);
-    } catch (ClientProtocolException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("HTTP protocol error.");
-    }
+      HttpResponse response;
+
+      try {
+        call.onAttempt(post);
+        response = mClient.execute(scope.add(post));
+      } catch (ClientProtocolException e) {
+        Log.e(TAG, e.getMessage(), e);
+        throw new IOException("HTTP protocol error.");
+      }
 
-    int statusCode = response.getStatusLine().getStatusCode();
+      int statusCode = response.getStatusLine().getStatusCode();
+      call.onResponse(statusCode);
 
-    if (statusCode != 200) {
-      Log.e(TAG, Utils.stringifyStream(response.getEntity().getContent()));
-      throw new IOException("Non OK response code: " + statusCode);
-    }
+      if (statusCode != 200) {
+        Log.e(TAG, Utils.stringifyStream(response.getEntity().getContent()));
+        throw new IOException("Non OK response code: " + statusCode);
+      }
 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    DocumentBuilder db;
-    Document doc;
+      InputStream data = response.getEntity().getContent();
 
-    try {
-      db = dbf.newDocumentBuilder();
-      doc = db.parse(response.getEntity().getContent());
-    } catch (ParserConfigurationException e) {
-      throw new IOException("Could not parse response.");
-    } catch (IllegalStateException e) {
-      throw new IOException("Could not parse response.");
-    } catch (SAXException e) {
-      throw new IOException("Could not parse response.");
+      try {
+        readUploadResponse(data);
+      } finally {
+        data.close();
+      }
+    } catch (IOException e) {
+      call.onFailure(e, scope.isAborted());
+      throw e;
+    } finally {
+      call.onComplete();
+      scope.close();
     }
+  }
 
-    Element root = doc.getDocumentElement();
-    root.normalize();
+  // The reply is a tiny <rsp stat="ok|fail"> document. On failure it holds
+  // an <err code="..." msg="..."/> element.
+  private void readUploadResponse(InputStream data) throws IOException,
+      ApiException {
+    try {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setInput(data, null);
 
-    if (!"rsp".equals(root.getTagName())) {
-      throw new IOException("Could not parse response.");
-    }
+      if (parser.nextTag() != XmlPullParser.START_TAG
+          || !"rsp".equals(parser.getName())) {
+        throw new IOException("Could not parse response.");
+      }
+
+      if (!"fail".equals(parser.getAttributeValue(null, "stat"))) {
+        return;
+      }
 
-    String stat = root.getAttribute("stat");
+      int eventType;
 
-    if ("fail".equals(stat)) {
-      NodeList list = root.getChildNodes();
+      while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+        if (eventType == XmlPullParser.START_TAG
+            && "err".equals(parser.getName())) {
+          String code = parser.getAttributeValue(null, "code");
+          String msg = parser.getAttributeValue(null, "msg");
 
-      for (int i = 0; i < list.getLength(); i++) {
-        if (list.item(i).getNodeName().equals("err")) {
-          Node err = list.item(i);
-          String code = err.getAttributes().getNamedItem("code").getNodeValue();
-          String msg = err.getAttributes().getNamedItem("msg").getNodeValue();
-          throw new ApiException(Integer.parseInt(code), msg);
+          try {
+            throw new ApiException(Integer.parseInt(code), msg);
+          } catch (NumberFormatException e) {
+            throw new IOException("Could not parse error response.");
+          }
         }
       }
 
       throw new IOException("Could not parse error response.");
+    } catch (XmlPullParserException e) {
+      Log.e(TAG, e.getMessage(), e);
+      throw new IOException("Could not parse response.");
+    }
+  }
+
+  // Pooled connections are only released once the entity has been read to
+  // the end or closed, so every response must go through here or be fully
+  // read by the caller.
+  private static void consume(HttpResponse response) {
+    HttpEntity entity = response.getEntity();
+
+    if (entity != null) {
+      try {
+        entity.consumeContent();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not release connection.", e);
+      }
     }
   }
 
@@ -233,9 +590,19 @@ public class TwitterApi {
   private InputStream requestData(String url, String httpMethod,
       ArrayList<NameValuePair> params) throws IOException, AuthException,
       ApiException {
+    return requestData(url, httpMethod, params, null, null);
+  }
+
+  // validators, if not null, holds the ETag and Last-Modified values to
+  // revalidate with. Returns null if the server says the resource has not
+  // changed. Otherwise the new validators are copied into newValidators.
+  private InputStream requestData(String url, final String httpMethod,
+      final ArrayList<NameValuePair> params, final String[] validators,
+      String[] newValidators) throws IOException, AuthException,
+      ApiException {
     Log.i(TAG, "Sending " + httpMethod + " request to " + url);
 
-    URI uri;
+    final URI uri;
 
     try {
       uri = new URI(url);
@@ -244,6 +611,111 @@ public class TwitterApi {
       throw new IOException("Invalid URL.");
     }
 
+    // Only GETs count against the hourly limit.
+    String family = getRateLimitFamily(url);
+    boolean isMetered = METHOD_GET.equals(httpMethod);
+
+    if (isMetered && mRateLimiter.isExhausted(family)) {
+      // Don't waste a round trip on a request that will be refused.
+      throw new ApiException(400, "Rate limit exceeded.");
+    }
+
+    // Lets a cancelled task abort the request, and the read of the body.
+    final RequestScope scope = RequestScope.open();
+    final NetworkStats.Call call = NetworkStats.getInstance().begin(url);
+    boolean isStreaming = false;
+
+    try {
+      RetryPolicy.RequestFactory factory = new RetryPolicy.RequestFactory() {
+        public HttpUriRequest create() throws IOException {
+          HttpUriRequest request = createRequest(uri, httpMethod, params,
+              validators);
+          call.onAttempt(request);
+
+          return scope.add(request);
+        }
+      };
+
+      HttpResponse response;
+
+      try {
+        // Only GETs are safe to send twice.
+        response = mRetryPolicy.execute(mClient, uri.getHost(), factory,
+            METHOD_GET.equals(httpMethod));
+      } catch (ClientProtocolException e) {
+        Log.e(TAG, e.getMessage(), e);
+        throw new IOException("HTTP protocol error.");
+      }
+
+      int statusCode = response.getStatusLine().getStatusCode();
+      call.onResponse(statusCode);
+
+      if (isMetered) {
+        mRateLimiter.update(family, response);
+      }
+
+      if (statusCode == 304 && validators != null) {
+        Log.i(TAG, "Not modified: " + url);
+        consume(response);
+        return null;
+      } else if (statusCode == 401) {
+        consume(response);
+        throw new AuthException();
+      } else if (statusCode == 403) {
+        try {
+          JSONObject json = new JSONObject(Utils.stringifyStream(response
+              .getEntity().getContent()));
+          throw new ApiException(statusCode, json.getString("error"));
+        } catch (IllegalStateException e) {
+          throw new IOException("Could not parse error response.");
+        } catch (JSONException e) {
+          throw new IOException("Could not parse error response.");
+        }
+      } else if (statusCode == 400 && isMetered
+          && mRateLimiter.isExhausted(family)) {
+        consume(response);
+        throw new ApiException(statusCode, "Rate limit exceeded.");
+      } else if (statusCode == 404) {
+        // Asking again won't make it exist.
+        consume(response);
+        throw new ApiException(statusCode, "Not found.");
+      } else if (statusCode != 200) {
+        Log.e(TAG, Utils.stringifyStream(response.getEntity().getContent()));
+        throw new IOException("Non OK response code: " + statusCode);
+      }
+
+      if (newValidators != null) {
+        newValidators[0] = getHeaderValue(response, HEADER_ETAG);
+        newValidators[1] = getHeaderValue(response, HEADER_LAST_MODIFIED);
+      }
+
+      InputStream content = scope.closeWith(call.completeWith(response
+          .getEntity().getContent()));
+      isStreaming = true;
+
+      return content;
+    } catch (IOException e) {
+      boolean isAborted = scope.isAborted()
+          || Thread.currentThread().isInterrupted();
+      call.onFailure(e, isAborted);
+
+      if (isAborted && !(e instanceof RequestScope.AbortedException)) {
+        Log.i(TAG, "Aborted: " + e.getMessage());
+        throw new RequestScope.AbortedException();
+      }
+
+      throw e;
+    } finally {
+      if (!isStreaming) {
+        call.onComplete();
+        scope.close();
+      }
+    }
+  }
+
+  private static HttpUriRequest createRequest(URI uri, String httpMethod,
+      ArrayList<NameValuePair> params, String[] validators)
+      throws IOException {
     HttpUriRequest method;
 
     if (METHOD_POST.equals(httpMethod)) {
@@ -265,140 +737,226 @@ public class TwitterApi {
         CONNECTION_TIMEOUT_MS);
     HttpConnectionParams.setSoTimeout(method.getParams(), SOCKET_TIMEOUT_MS);
 
-    HttpResponse response;
-
-    try {
-      response = mClient.execute(method);
-    } catch (ClientProtocolException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("HTTP protocol error.");
-    }
-
-    int statusCode = response.getStatusLine().getStatusCode();
+    if (validators != null) {
+      if (validators[0] != null) {
+        method.addHeader(HEADER_IF_NONE_MATCH, validators[0]);
+      }
 
-    if (statusCode == 401) {
-      throw new AuthException();
-    } else if (statusCode == 403) {
-      try {
-        JSONObject json = new JSONObject(Utils.stringifyStream(response
-            .getEntity().getContent()));
-        throw new ApiException(statusCode, json.getString("error"));
-      } catch (IllegalStateException e) {
-        throw new IOException("Could not parse error response.");
-      } catch (JSONException e) {
-        throw new IOException("Could not parse error response.");
+      if (validators[1] != null) {
+        method.addHeader(HEADER_IF_MODIFIED_SINCE, validators[1]);
       }
-    } else if (statusCode != 200) {
-      Log.e(TAG, Utils.stringifyStream(response.getEntity().getContent()));
-      throw new IOException("Non OK response code: " + statusCode);
     }
 
-    return response.getEntity().getContent();
+    return method;
   }
 
-  public void login(String username, String password) throws IOException,
-      AuthException, ApiException {
-    Log.i(TAG, "Login attempt for " + username);
-    setCredentials(username, password);
-    InputStream data = requestData(VERIFY_CREDENTIALS_URL, METHOD_GET, null);
-    data.close();
-  }
+  private static String getHeaderValue(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
 
-  public void logout() {
-    setCredentials("", "");
+    return header == null ? null : header.getValue();
   }
 
-  public JSONArray getTimeline() throws IOException, AuthException,
-      ApiException {
-    Log.i(TAG, "Requesting friends timeline.");
+  // Conditional GET support.
 
-    String url = FRIENDS_TIMELINE_URL + "?count="
-        + URLEncoder.encode(RETRIEVE_LIMIT + "", HTTP.UTF_8);
+  private String[] fetchValidators(String url) {
+    ValidatorStore store = mValidatorStore;
 
-    InputStream data = requestData(url, METHOD_GET, null);
-    JSONArray json = null;
+    if (store == null) {
+      return null;
+    }
 
-    try {
-      json = new JSONArray(Utils.stringifyStream(data));
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
-    } finally {
-      data.close();
+    String[] validators = store.fetchValidators(url);
+
+    if (validators == null
+        || (validators[0] == null && validators[1] == null)) {
+      return null;
     }
 
-    return json;
+    return validators;
   }
 
-  public JSONArray getTimelineSinceId(long sinceId) throws IOException,
-      AuthException, ApiException {
-    Log.i(TAG, "Requesting friends timeline since id.");
+  // Only call this once the response has been fully handled, or a later 304
+  // could point at a result that was never stored.
+  private void storeValidators(String url, String[] validators) {
+    ValidatorStore store = mValidatorStore;
 
-    String url = FRIENDS_TIMELINE_URL + "?count="
-        + URLEncoder.encode(RETRIEVE_LIMIT + "", HTTP.UTF_8);
+    if (store != null && (validators[0] != null || validators[1] != null)) {
+      store.storeValidators(url, validators[0], validators[1]);
+    }
+  }
 
-    if (sinceId > 0) {
-      url += "&since_id=" + URLEncoder.encode(sinceId + "", HTTP.UTF_8);
+  private Revalidatable getRevalidatableResult(String url) {
+    synchronized (mRevalidatableResults) {
+      return mRevalidatableResults.get(url);
     }
+  }
 
-    InputStream data = requestData(url, METHOD_GET, null);
-    JSONArray json = null;
+  // Does nothing if the response had no validators to revalidate with.
+  private void putRevalidatableResult(String url, Object result,
+      String[] validators) {
+    if (validators[0] == null && validators[1] == null) {
+      return;
+    }
 
-    try {
-      json = new JSONArray(Utils.stringifyStream(data));
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
-    } finally {
-      data.close();
+    synchronized (mRevalidatableResults) {
+      mRevalidatableResults.put(url, new Revalidatable(result, validators));
     }
+  }
 
-    return json;
+  // A page of items kept so a 304, or a caller that joined an identical
+  // request already in flight, can be answered without reparsing.
+  private static class Page<T> {
+    ArrayList<T> items = new ArrayList<T>();
+    // The profiles handed to the user handler, in order.
+    ArrayList<User> users = new ArrayList<User>();
+    // False if the reader stopped before the end of the response.
+    boolean complete;
   }
 
-  public JSONArray getDirectMessages() throws IOException, AuthException,
-      ApiException {
-    Log.i(TAG, "Requesting direct messages.");
+  private static <T> void replay(Page<T> page, ItemHandler<T> handler,
+      ItemHandler<User> userHandler) {
+    if (userHandler != null) {
+      for (User user : page.users) {
+        userHandler.handle(user);
+      }
+    }
+
+    for (T item : page.items) {
+      if (!handler.handle(item)) {
+        return;
+      }
+    }
+  }
+
+  // Single flight support.
+
+  private interface PageReader<T> {
+    public Page<T> read(ItemHandler<T> handler, ItemHandler<User> userHandler)
+        throws IOException, AuthException, ApiException;
+  }
 
-    InputStream data = requestData(DIRECT_MESSAGES_URL, METHOD_GET, null);
-    JSONArray json = null;
+  private static String getFlightKey(String httpMethod, String url) {
+    return httpMethod + " " + url;
+  }
 
+  private <T> T singleFlight(String key, SingleFlight.Call<T> call)
+      throws IOException, AuthException, ApiException {
     try {
-      json = new JSONArray(Utils.stringifyStream(data));
-    } catch (JSONException e) {
+      return mSingleFlight.execute(key, call);
+    } catch (IOException e) {
+      throw e;
+    } catch (AuthException e) {
+      throw e;
+    } catch (ApiException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted.");
+    } catch (Exception e) {
       Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
-    } finally {
-      data.close();
+      throw new IOException("Request failed.");
     }
+  }
 
-    return json;
+  // Streams a GET to the handler. If the same URL is already being fetched,
+  // waits for that request and replays its page instead of sending another.
+  // The leader streams straight to its own handler; if it stopped early the
+  // page is partial, so the waiter falls back to a request of its own.
+  // Only for readers that keep the page anyway, i.e. revalidatable ones.
+  private <T> void readShared(String url, final PageReader<T> reader,
+      final ItemHandler<T> handler, final ItemHandler<User> userHandler)
+      throws IOException, AuthException, ApiException {
+    final boolean[] isLeader = new boolean[1];
+
+    Page<T> page = singleFlight(getFlightKey(METHOD_GET, url),
+        new SingleFlight.Call<Page<T>>() {
+      public Page<T> call() throws Exception {
+        isLeader[0] = true;
+
+        return reader.read(handler, userHandler);
+      }
+    });
+
+    if (isLeader[0]) {
+      return;
+    }
+
+    if (page.complete) {
+      replay(page, handler, userHandler);
+    } else {
+      reader.read(handler, userHandler);
+    }
   }
 
-  public JSONArray getDirectMessagesSent() throws IOException, AuthException,
+  // Number of requests that were never sent because an identical one was
+  // already in flight.
+  public long getCollapsedRequestCount() {
+    return mSingleFlight.getCollapsedCount();
+  }
+
+  // Reads a page of tweets for a revalidatable URL, keeping a copy so the
+  // next 304 can be served from memory.
+  private void readRevalidatableTweets(final String url,
+      final boolean isSearch, ItemHandler<Tweet> handler,
+      ItemHandler<User> userHandler) throws IOException, AuthException,
       ApiException {
-    Log.i(TAG, "Requesting sent direct messages.");
+    readShared(url, new PageReader<Tweet>() {
+      public Page<Tweet> read(ItemHandler<Tweet> handler,
+          ItemHandler<User> userHandler) throws IOException, AuthException,
+          ApiException {
+        Revalidatable cached = getRevalidatableResult(url);
+        String[] validators = cached == null ? null : cached.validators;
+        String[] newValidators = new String[2];
+
+        InputStream data = requestData(url, METHOD_GET, null, validators,
+            newValidators);
+
+        if (data == null) {
+          @SuppressWarnings("unchecked")
+          Page<Tweet> page = (Page<Tweet>) cached.result;
+          replay(page, handler, userHandler);
+          return page;
+        }
 
-    InputStream data = requestData(DIRECT_MESSAGES_SENT_URL, METHOD_GET, null);
-    JSONArray json = null;
+        Page<Tweet> page = new Page<Tweet>();
 
-    try {
-      json = new JSONArray(Utils.stringifyStream(data));
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
-    } finally {
-      data.close();
-    }
+        if (isSearch) {
+          page.complete = readSearchResults(data, handler, page);
+        } else {
+          page.complete = readTweets(data, handler, userHandler, false,
+              page);
+        }
 
-    return json;
+        if (page.complete) {
+          putRevalidatableResult(url, page, newValidators);
+        }
+
+        return page;
+      }
+    }, handler, userHandler);
+  }
+
+  public void login(String username, String password) throws IOException,
+      AuthException, ApiException {
+    Log.i(TAG, "Login attempt for " + username);
+    setCredentials(username, password);
+    InputStream data = requestData(mSecureApiBase + VERIFY_CREDENTIALS_PATH,
+        METHOD_GET, null);
+    data.close();
+  }
+
+  public void logout() {
+    setCredentials("", "");
+    clearFriendships();
   }
 
   public JSONObject destroyDirectMessage(long id) throws IOException,
       AuthException, ApiException {
     Log.i(TAG, "Deleting direct message: " + id);
 
-    String url = String.format(DIRECT_MESSAGES_DESTROY_URL, id);
+    String url = mApiBase + String.format(DIRECT_MESSAGES_DESTROY_PATH, id);
 
     InputStream data = requestData(url, METHOD_DELETE, null);
     JSONObject json = null;
@@ -415,6 +973,68 @@ public class TwitterApi {
     return json;
   }
 
+  /**
+   * Deletes many direct messages, a few at a time. Returns the ids that
+   * could not be deleted so they can be retried later. A message that is
+   * already gone counts as deleted. Stops and throws AuthException if the
+   * credentials are rejected.
+   */
+  public ArrayList<Long> destroyDirectMessages(List<Long> ids)
+      throws AuthException {
+    Log.i(TAG, "Deleting " + ids.size() + " direct messages.");
+
+    ArrayList<Long> failed = new ArrayList<Long>();
+
+    if (ids.isEmpty()) {
+      return failed;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+        MAX_BULK_WORKERS, ids.size()), RequestScope.newThreadFactory(TAG));
+    ArrayList<Future<JSONObject>> results = new ArrayList<Future<JSONObject>>();
+
+    try {
+      for (final Long id : ids) {
+        results.add(executor.submit(new Callable<JSONObject>() {
+          public JSONObject call() throws Exception {
+            return destroyDirectMessage(id);
+          }
+        }));
+      }
+
+      for (int i = 0; i < ids.size(); ++i) {
+        try {
+          results.get(i).get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof AuthException) {
+            throw (AuthException) e.getCause();
+          } else if (e.getCause() instanceof ApiException
+              && ((ApiException) e.getCause()).mCode == 404) {
+            Log.i(TAG, "Direct message already deleted: " + ids.get(i));
+            continue;
+          }
+
+          Log.e(TAG, "Could not delete direct message: " + ids.get(i),
+              e.getCause());
+          failed.add(ids.get(i));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+
+          // Whatever hasn't been confirmed yet may still need deleting.
+          for (int j = i; j < ids.size(); ++j) {
+            failed.add(ids.get(j));
+          }
+
+          break;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return failed;
+  }
+
   public JSONObject sendDirectMessage(String user, String text)
       throws IOException, AuthException, ApiException {
     Log.i(TAG, "Sending dm.");
@@ -423,7 +1043,8 @@ public class TwitterApi {
     params.add(new BasicNameValuePair("user", user));
     params.add(new BasicNameValuePair("text", text));
 
-    InputStream data = requestData(DIRECT_MESSAGES_NEW_URL, METHOD_POST, params);
+    InputStream data = requestData(mApiBase + DIRECT_MESSAGES_NEW_PATH,
+        METHOD_POST, params);
     JSONObject json = null;
 
     try {
@@ -446,7 +1067,8 @@ public class TwitterApi {
     params.add(new BasicNameValuePair("status", status));
     params.add(new BasicNameValuePair("source", "Twitta"));
 
-    InputStream data = requestData(UPDATE_URL, METHOD_POST, params);
+    InputStream data = requestData(mApiBase + UPDATE_PATH, METHOD_POST,
+        params);
     JSONObject json = null;
 
     try {
@@ -461,91 +1083,150 @@ public class TwitterApi {
     return json;
   }
 
-  public JSONArray getDmsSinceId(long sinceId, boolean isSent)
-      throws IOException, AuthException, ApiException {
-    Log.i(TAG, "Requesting DMs since id.");
+  /**
+   * Followers ids from getFollowersIdsIfModified. Once they have been
+   * stored, pass them to markFollowersSynced so that the next request can
+   * be revalidated against them.
+   */
+  public static class FollowersIds {
+    public final ArrayList<Long> ids;
+
+    private final String mUrl;
+    private final String[] mValidators;
+
+    private FollowersIds(ArrayList<Long> ids, String url, String[] validators) {
+      this.ids = ids;
+      mUrl = url;
+      mValidators = validators;
+    }
+  }
 
-    String url = isSent ? DIRECT_MESSAGES_SENT_URL : DIRECT_MESSAGES_URL;
+  /**
+   * Gets the followers ids, revalidating against the last response that was
+   * passed to markFollowersSynced. Returns null if the followers have not
+   * changed since then, in which case the synced followers are current.
+   */
+  public FollowersIds getFollowersIdsIfModified() throws IOException,
+      AuthException, ApiException {
+    Log.i(TAG, "Requesting followers ids if modified.");
 
-    if (sinceId > 0) {
-      url += "?since_id=" + URLEncoder.encode(sinceId + "", HTTP.UTF_8);
+    String url = mApiBase + FOLLOWERS_IDS_PATH;
+    String[] newValidators = new String[2];
+    InputStream data = requestData(url, METHOD_GET, null,
+        fetchValidators(url), newValidators);
+
+    if (data == null) {
+      return null;
     }
 
-    InputStream data = requestData(url, METHOD_GET, null);
-    JSONArray json = null;
+    ArrayList<Long> followers = new ArrayList<Long>();
 
     try {
-      json = new JSONArray(Utils.stringifyStream(data));
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
+      JsonPullParser parser = new JsonPullParser(data);
+      parser.beginArray();
+
+      while (parser.hasNext()) {
+        followers.add(parser.nextLong());
+      }
+
+      parser.endArray();
     } finally {
       data.close();
     }
 
-    return json;
+    return new FollowersIds(followers, url, newValidators);
   }
 
-  public ArrayList<Long> getFollowersIds() throws IOException,
+  public void markFollowersSynced(FollowersIds followers) {
+    storeValidators(followers.mUrl, followers.mValidators);
+  }
+
+  public boolean isFollows(String a, String b) throws IOException,
       AuthException, ApiException {
-    Log.i(TAG, "Requesting followers ids.");
+    Log.i(TAG, "Check follows.");
 
-    InputStream data = requestData(FOLLOWERS_IDS_URL, METHOD_GET, null);
-    ArrayList<Long> followers = new ArrayList<Long>();
+    Boolean known = getFriendship(a, b);
 
-    try {
-      JSONArray jsonArray = new JSONArray(Utils.stringifyStream(data));
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        followers.add(jsonArray.getLong(i));
-      }
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
-    } finally {
-      data.close();
+    if (known != null) {
+      Log.i(TAG, "Friendship cached: " + a + " -> " + b);
+      return known;
     }
 
-    return followers;
+    final String url = mApiBase + FRIENDSHIPS_EXISTS_PATH + "?user_a="
+        + URLEncoder.encode(a, HTTP.UTF_8)
+        + "&user_b="
+        + URLEncoder.encode(b, HTTP.UTF_8);
+
+    boolean follows = singleFlight(getFlightKey(METHOD_GET, url),
+        new SingleFlight.Call<Boolean>() {
+      public Boolean call() throws Exception {
+        Revalidatable cached = getRevalidatableResult(url);
+        String[] validators = cached == null ? null : cached.validators;
+        String[] newValidators = new String[2];
+
+        InputStream data = requestData(url, METHOD_GET, null, validators,
+            newValidators);
+
+        if (data == null) {
+          return (Boolean) cached.result;
+        }
+
+        boolean follows;
+
+        try {
+          follows = "true".equals(Utils.stringifyStream(data).trim());
+        } finally {
+          data.close();
+        }
+
+        putRevalidatableResult(url, follows, newValidators);
+
+        return follows;
+      }
+    });
+
+    putFriendship(a, b, follows);
+
+    return follows;
   }
 
-  public JSONArray getUserTimeline(String user, int page) throws IOException,
-      AuthException, ApiException {
-    Log.i(TAG, "Requesting user timeline.");
+  private static String getFriendshipKey(String a, String b) {
+    return a.toLowerCase() + "|" + b.toLowerCase();
+  }
 
-    String url = USER_TIMELINE_URL + "?screen_name="
-        + URLEncoder.encode(user, HTTP.UTF_8)
-        + "&page=" + URLEncoder.encode(page + "", HTTP.UTF_8);
+  // Returns null if unknown or too old.
+  private Boolean getFriendship(String a, String b) {
+    synchronized (mFriendships) {
+      Friendship friendship = mFriendships.get(getFriendshipKey(a, b));
 
-    InputStream data = requestData(url, METHOD_GET, null);
-    JSONArray json = null;
+      if (friendship == null
+          || System.currentTimeMillis() - friendship.time > FRIENDSHIP_TTL_MS) {
+        return null;
+      }
 
-    try {
-      json = new JSONArray(Utils.stringifyStream(data));
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
-    } finally {
-      data.close();
+      return friendship.follows;
     }
-
-    return json;
   }
 
-  public boolean isFollows(String a, String b) throws IOException,
-      AuthException, ApiException {
-    Log.i(TAG, "Check follows.");
+  private void putFriendship(String a, String b, boolean follows) {
+    synchronized (mFriendships) {
+      mFriendships.put(getFriendshipKey(a, b), new Friendship(follows,
+          System.currentTimeMillis()));
+    }
+  }
 
-    String url = FRIENDSHIPS_EXISTS_URL + "?user_a="
-        + URLEncoder.encode(a, HTTP.UTF_8)
-        + "&user_b="
-        + URLEncoder.encode(b, HTTP.UTF_8);
+  private void clearFriendships() {
+    synchronized (mFriendships) {
+      mFriendships.clear();
+    }
+  }
 
-    InputStream data = requestData(url, METHOD_GET, null);
+  // The create and destroy responses are the other user's profile.
+  private void onFriendshipChanged(JSONObject user, boolean follows) {
+    String screenName = user.optString("screen_name");
 
-    try {
-      return "true".equals(Utils.stringifyStream(data).trim());
-    } finally {
-      data.close();
+    if (!Utils.isEmpty(screenName) && !Utils.isEmpty(mUsername)) {
+      putFriendship(mUsername, screenName, follows);
     }
   }
 
@@ -553,7 +1234,7 @@ public class TwitterApi {
       AuthException, ApiException {
     Log.i(TAG, "Following: " + id);
 
-    String url = String.format(FRIENDSHIPS_CREATE_URL, id);
+    String url = mApiBase + String.format(FRIENDSHIPS_CREATE_PATH, id);
 
     InputStream data = requestData(url, METHOD_POST,
         new ArrayList<NameValuePair>());
@@ -568,6 +1249,8 @@ public class TwitterApi {
       data.close();
     }
 
+    onFriendshipChanged(json, true);
+
     return json;
   }
 
@@ -575,7 +1258,7 @@ public class TwitterApi {
       AuthException, ApiException {
     Log.i(TAG, "Unfollowing: " + id);
 
-    String url = String.format(FRIENDSHIPS_DESTROY_URL, id);
+    String url = mApiBase + String.format(FRIENDSHIPS_DESTROY_PATH, id);
 
     InputStream data = requestData(url, METHOD_DELETE, null);
     JSONObject json = null;
@@ -589,30 +1272,266 @@ public class TwitterApi {
       data.close();
     }
 
+    onFriendshipChanged(json, false);
+
     return json;
   }
 
-  public JSONArray search(String query, int page) throws IOException, AuthException,
+  // Streaming reads. These decode the response as it arrives and hand each
+  // item to the handler, so neither the body text nor a JSONArray of the
+  // whole page is ever held in memory.
+
+  public void getTimelineSinceId(long sinceId, ItemHandler<Tweet> handler)
+      throws IOException, AuthException, ApiException {
+    getTimelineSinceId(sinceId, handler, null);
+  }
+
+  // authorHandler, if not null, receives the profile of every author in the
+  // page once, before their first tweet.
+  public void getTimelineSinceId(long sinceId, ItemHandler<Tweet> handler,
+      ItemHandler<User> authorHandler) throws IOException, AuthException,
       ApiException {
-    Log.i(TAG, "Searching.");
+    Log.i(TAG, "Streaming friends timeline since id.");
+
+    String url = mApiBase + FRIENDS_TIMELINE_PATH + "?count="
+        + URLEncoder.encode(RETRIEVE_LIMIT + "", HTTP.UTF_8);
 
-    String url = SEARCH_URL + "?q=" + URLEncoder.encode(query, HTTP.UTF_8)
-        + "&page=" + URLEncoder.encode(page + "", HTTP.UTF_8);
+    if (sinceId > 0) {
+      url += "&since_id=" + URLEncoder.encode(sinceId + "", HTTP.UTF_8);
+    }
+
+    // Not shared with identical calls in flight, since that would mean
+    // holding the whole page for them.
+    readTweets(requestData(url, METHOD_GET, null), handler, authorHandler,
+        true, null);
+  }
+
+  /**
+   * Fetches many profiles with as few requests as possible. Screen names
+   * that don't exist are left out of the result.
+   */
+  public ArrayList<User> lookupUsers(Collection<String> screenNames)
+      throws IOException, AuthException, ApiException {
+    Log.i(TAG, "Looking up " + screenNames.size() + " users.");
+
+    ArrayList<User> users = new ArrayList<User>();
+    ArrayList<String> batch = new ArrayList<String>();
+
+    for (String screenName : screenNames) {
+      batch.add(screenName);
+
+      if (batch.size() == MAX_LOOKUP_USERS) {
+        lookupUsers(batch, users);
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      lookupUsers(batch, users);
+    }
+
+    return users;
+  }
+
+  private void lookupUsers(List<String> screenNames, ArrayList<User> users)
+      throws IOException, AuthException, ApiException {
+    StringBuilder names = new StringBuilder();
+
+    for (String screenName : screenNames) {
+      if (names.length() > 0) {
+        names.append(',');
+      }
+
+      names.append(screenName);
+    }
+
+    String url = mApiBase + USERS_LOOKUP_PATH + "?screen_name="
+        + URLEncoder.encode(names.toString(), HTTP.UTF_8);
 
     InputStream data = requestData(url, METHOD_GET, null);
-    JSONArray json = null;
 
     try {
-      JSONObject object = new JSONObject(Utils.stringifyStream(data));
-      json = object.getJSONArray("results");
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage(), e);
-      throw new IOException("Could not parse JSON.");
+      JsonPullParser parser = new JsonPullParser(data);
+      parser.beginArray();
+
+      while (parser.hasNext()) {
+        users.add(User.create(parser));
+      }
+
+      parser.endArray();
     } finally {
       data.close();
     }
+  }
 
-    return json;
+  public void getDmsSinceId(long sinceId, final boolean isSent,
+      ItemHandler<Dm> handler) throws IOException, AuthException,
+      ApiException {
+    Log.i(TAG, "Streaming DMs since id.");
+
+    String url = mApiBase
+        + (isSent ? DIRECT_MESSAGES_SENT_PATH : DIRECT_MESSAGES_PATH);
+
+    if (sinceId > 0) {
+      url += "?since_id=" + URLEncoder.encode(sinceId + "", HTTP.UTF_8);
+    }
+
+    // Not shared with identical calls in flight, since that would mean
+    // holding the whole page for them.
+    readDms(requestData(url, METHOD_GET, null), isSent, handler, null);
+  }
+
+  // Returns false if the handler stopped before the end of the array.
+  // If page is not null, every message read is also added to it.
+  private boolean readDms(InputStream data, boolean isSent,
+      ItemHandler<Dm> handler, Page<Dm> page) throws IOException {
+    try {
+      JsonPullParser parser = new JsonPullParser(data);
+      parser.beginArray();
+
+      while (parser.hasNext()) {
+        Dm dm = Dm.create(parser, isSent);
+
+        if (page != null) {
+          page.items.add(dm);
+        }
+
+        if (!handler.handle(dm)) {
+          return false;
+        }
+      }
+
+      parser.endArray();
+    } finally {
+      data.close();
+    }
+
+    return true;
+  }
+
+  // The streaming user timeline and search page with a cursor rather than a
+  // page number, so tweets posted between loads don't shift the pages.
+  // maxId is the highest id to return, normally one less than the lowest id
+  // already loaded, or 0 for the newest page.
+
+  // userHandler, if not null, receives the profile of the timeline's owner
+  // once, taken from the first status.
+  public void getUserTimeline(String user, long maxId,
+      ItemHandler<Tweet> handler, ItemHandler<User> userHandler)
+      throws IOException, AuthException, ApiException {
+    Log.i(TAG, "Streaming user timeline.");
+
+    String url = mApiBase + USER_TIMELINE_PATH + "?screen_name="
+        + URLEncoder.encode(user, HTTP.UTF_8);
+
+    if (maxId > 0) {
+      url += "&max_id=" + URLEncoder.encode(maxId + "", HTTP.UTF_8);
+    }
+
+    readRevalidatableTweets(url, false, handler, userHandler);
+  }
+
+  public void search(String query, long maxId, ItemHandler<Tweet> handler)
+      throws IOException, AuthException, ApiException {
+    Log.i(TAG, "Streaming search.");
+
+    String url = mSearchBase + SEARCH_PATH + "?q="
+        + URLEncoder.encode(query, HTTP.UTF_8);
+
+    if (maxId > 0) {
+      url += "&max_id=" + URLEncoder.encode(maxId + "", HTTP.UTF_8);
+    }
+
+    readRevalidatableTweets(url, true, handler, null);
+  }
+
+  // Returns false if the handler stopped before the end of the results.
+  // If page is not null, every tweet read is also added to it.
+  private boolean readSearchResults(InputStream data,
+      ItemHandler<Tweet> handler, Page<Tweet> page) throws IOException {
+    try {
+      JsonPullParser parser = new JsonPullParser(data);
+      parser.beginObject();
+
+      while (parser.hasNext()) {
+        if (!"results".equals(parser.nextName())) {
+          parser.skipValue();
+          continue;
+        }
+
+        parser.beginArray();
+
+        while (parser.hasNext()) {
+          Tweet tweet = Tweet.createFromSearchApi(parser);
+
+          if (page != null) {
+            page.items.add(tweet);
+          }
+
+          if (!handler.handle(tweet)) {
+            return false;
+          }
+        }
+
+        parser.endArray();
+      }
+
+      parser.endObject();
+    } finally {
+      data.close();
+    }
+
+    return true;
+  }
+
+  // Returns false if the handler stopped before the end of the array.
+  // userHandler gets the first author, or every distinct author if
+  // everyAuthor is set. If page is not null, every tweet read, and those
+  // users, are also added to it.
+  private boolean readTweets(InputStream data, ItemHandler<Tweet> handler,
+      ItemHandler<User> userHandler, boolean everyAuthor, Page<Tweet> page)
+      throws IOException {
+    try {
+      JsonPullParser parser = new JsonPullParser(data);
+      parser.beginArray();
+
+      HashSet<String> authors = new HashSet<String>();
+
+      while (parser.hasNext()) {
+        User user = null;
+
+        if ((authors.isEmpty() || everyAuthor)
+            && (userHandler != null || page != null)) {
+          user = new User();
+        }
+
+        Tweet tweet = Tweet.create(parser, user);
+
+        if (user != null && authors.add(user.screenName)) {
+          if (userHandler != null) {
+            userHandler.handle(user);
+          }
+
+          if (page != null) {
+            page.users.add(user);
+          }
+        }
+
+        if (page != null) {
+          page.items.add(tweet);
+        }
+
+        if (!handler.handle(tweet)) {
+          return false;
+        }
+      }
+
+      parser.endArray();
+    } finally {
+      data.close();
+    }
+
+    return true;
   }
 
 }
@@ -1,12 +1,11 @@
 package com.dart.android.twitter;
 
-import java.util.HashSet;
-
 import android.app.Application;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.preference.PreferenceManager;
 
+import com.google.android.photostream.UserTask;
+
 public class TwitterApplication extends Application {
   
   public static final String TAG = "TwitterApplication";
@@ -14,6 +13,7 @@ public class TwitterApplication extends Application {
   public static ImageManager mImageManager;
   public static TwitterDbAdapter mDb; 
   public static TwitterApi mApi;
+  public static AsyncTwitterApi mAsyncApi;
 
   @Override
   public void onCreate() {
@@ -23,6 +23,15 @@ public class TwitterApplication extends Application {
     mDb = new TwitterDbAdapter(this);
     mDb.open();
     mApi = new TwitterApi();
+    mApi.setValidatorStore(mDb);
+    mAsyncApi = new AsyncTwitterApi(mApi);
+
+    // Cancelling a task should stop its download, not just interrupt it.
+    UserTask.setCancelHook(new UserTask.CancelHook() {
+      public void onCancel(Thread worker) {
+        RequestScope.abortAll(worker);
+      }
+    });
     
     SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);        
 
@@ -36,40 +45,10 @@ public class TwitterApplication extends Application {
 
   @Override
   public void onTerminate() {
-    cleanupImages();
+    mAsyncApi.shutdown();
     mDb.close();
     
     super.onTerminate();
   }
-  
-  private void cleanupImages() {
-    HashSet<String> keepers = new HashSet<String>();
-    
-    Cursor cursor = mDb.fetchAllTweets();
-    
-    if (cursor.moveToFirst()) {
-      int imageIndex = cursor.getColumnIndexOrThrow(
-          TwitterDbAdapter.KEY_PROFILE_IMAGE_URL);
-      do {
-        keepers.add(cursor.getString(imageIndex));
-      } while (cursor.moveToNext());
-    }
-    
-    cursor.close();
-    
-    cursor = mDb.fetchAllDms();
-    
-    if (cursor.moveToFirst()) {
-      int imageIndex = cursor.getColumnIndexOrThrow(
-          TwitterDbAdapter.KEY_PROFILE_IMAGE_URL);
-      do {
-        keepers.add(cursor.getString(imageIndex));
-      } while (cursor.moveToNext());
-    }
-    
-    cursor.close();
-    
-    mImageManager.cleanup(keepers);
-  }
-    
+
 }
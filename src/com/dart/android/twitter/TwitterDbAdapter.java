@@ -18,6 +18,8 @@ package com.dart.android.twitter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 import android.content.ContentValues;
@@ -28,7 +30,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
-public class TwitterDbAdapter {
+public class TwitterDbAdapter implements TwitterApi.ValidatorStore {
   private static final String TAG = "TwitterDbAdapter";
 
   public static final String KEY_ID = "_id";
@@ -41,6 +43,15 @@ public class TwitterDbAdapter {
   public static final String KEY_IS_SENT = "is_sent";
   public static final String KEY_USER_ID = "user_id";
   public static final String KEY_IS_REPLY = "is_reply";
+  public static final String KEY_URL = "url";
+  public static final String KEY_ETAG = "etag";
+  public static final String KEY_LAST_MODIFIED = "last_modified";
+  public static final String KEY_TYPE = "type";
+  public static final String KEY_ATTEMPTS = "attempts";
+  public static final String KEY_NAME = "name";
+  public static final String KEY_LOCATION = "location";
+  public static final String KEY_DESCRIPTION = "description";
+  public static final String KEY_UPDATED_AT = "updated_at";
 
   public static final String[] TWEET_COLUMNS = new String[] { KEY_ID, KEY_USER,
       KEY_TEXT, KEY_PROFILE_IMAGE_URL, KEY_IS_UNREAD, KEY_CREATED_AT,
@@ -52,6 +63,27 @@ public class TwitterDbAdapter {
 
   public static final String[] FOLLOWER_COLUMNS = new String[] { KEY_ID };
 
+  public static final String[] VALIDATOR_COLUMNS = new String[] { KEY_URL,
+      KEY_ETAG, KEY_LAST_MODIFIED };
+
+  public static final String[] OUTBOX_COLUMNS = new String[] { KEY_ID,
+      KEY_TYPE, KEY_USER, KEY_TEXT, KEY_CREATED_AT, KEY_ATTEMPTS };
+
+  public static final String[] USER_COLUMNS = new String[] { KEY_USER,
+      KEY_USER_ID, KEY_NAME, KEY_LOCATION, KEY_DESCRIPTION,
+      KEY_PROFILE_IMAGE_URL, KEY_URL, KEY_UPDATED_AT };
+
+  // Outbox item types.
+  public static final int OUTBOX_TYPE_STATUS = 0;
+  public static final int OUTBOX_TYPE_DM = 1;
+  // A DM already removed from the list whose remote copy is still to be
+  // deleted. The text is the DM's id.
+  public static final int OUTBOX_TYPE_DM_DELETE = 2;
+
+  // An outbox item that failed this many times is given up on. It stays in
+  // the lists, marked as not sent, but isn't sent again.
+  public static final int OUTBOX_MAX_ATTEMPTS = 5;
+
   private DatabaseHelper mDbHelper;
   private SQLiteDatabase mDb;
 
@@ -60,8 +92,14 @@ public class TwitterDbAdapter {
   private static final String TWEET_TABLE = "tweets";
   private static final String DM_TABLE = "dms";
   private static final String FOLLOWER_TABLE = "followers";
+  private static final String VALIDATOR_TABLE = "validators";
+  private static final String OUTBOX_TABLE = "outbox";
+  private static final String USER_TABLE = "users";
+
+  private static final int DATABASE_VERSION = 12;
 
-  private static final int DATABASE_VERSION = 9;
+  // How many profiles to keep, most recently updated first.
+  private static final int USER_LIMIT = 500;
 
   // NOTE: the twitter ID is used as the row ID.
   // Furthermore, if a row already exists, an insert will replace
@@ -85,6 +123,30 @@ public class TwitterDbAdapter {
       + FOLLOWER_TABLE + " (" + KEY_ID
       + " integer primary key on conflict replace)";
 
+  // HTTP validators for conditional GETs, keyed by URL.
+  private static final String VALIDATOR_TABLE_CREATE = "create table "
+      + VALIDATOR_TABLE + " (" + KEY_URL
+      + " text primary key on conflict replace, " + KEY_ETAG + " text, "
+      + KEY_LAST_MODIFIED + " text)";
+
+  // Status updates and DMs waiting to be sent, oldest first. For a status
+  // the user is the author, for a DM the recipient.
+  private static final String OUTBOX_TABLE_CREATE = "create table "
+      + OUTBOX_TABLE + " (" + KEY_ID + " integer primary key autoincrement, "
+      + KEY_TYPE + " integer not null, " + KEY_USER + " text not null, "
+      + KEY_TEXT + " text not null, " + KEY_CREATED_AT + " date not null, "
+      + KEY_ATTEMPTS + " integer not null default 0)";
+
+  // Profiles seen in timelines or looked up, keyed by screen name, so that
+  // a user's page can be drawn before the network answers.
+  private static final String USER_TABLE_CREATE = "create table "
+      + USER_TABLE + " (" + KEY_USER
+      + " text primary key on conflict replace, " + KEY_USER_ID
+      + " integer not null, " + KEY_NAME + " text not null, " + KEY_LOCATION
+      + " text not null, " + KEY_DESCRIPTION + " text not null, "
+      + KEY_PROFILE_IMAGE_URL + " text not null, " + KEY_URL
+      + " text not null, " + KEY_UPDATED_AT + " integer not null)";
+
   private final Context mContext;
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
@@ -97,6 +159,9 @@ public class TwitterDbAdapter {
       db.execSQL(TWEET_TABLE_CREATE);
       db.execSQL(DM_TABLE_CREATE);
       db.execSQL(FOLLOWER_TABLE_CREATE);
+      db.execSQL(VALIDATOR_TABLE_CREATE);
+      db.execSQL(OUTBOX_TABLE_CREATE);
+      db.execSQL(USER_TABLE_CREATE);
     }
 
     @Override
@@ -106,6 +171,9 @@ public class TwitterDbAdapter {
       db.execSQL("DROP TABLE IF EXISTS " + TWEET_TABLE);
       db.execSQL("DROP TABLE IF EXISTS " + DM_TABLE);
       db.execSQL("DROP TABLE IF EXISTS " + FOLLOWER_TABLE);
+      db.execSQL("DROP TABLE IF EXISTS " + VALIDATOR_TABLE);
+      db.execSQL("DROP TABLE IF EXISTS " + OUTBOX_TABLE);
+      db.execSQL("DROP TABLE IF EXISTS " + USER_TABLE);
       onCreate(db);
     }
   }
@@ -139,7 +207,7 @@ public class TwitterDbAdapter {
     initialValues.put(KEY_IS_REPLY, tweet.isReply());
     initialValues
         .put(KEY_CREATED_AT, DB_DATE_FORMATTER.format(tweet.createdAt));
-    initialValues.put(KEY_SOURCE, tweet.source);
+    initialValues.put(KEY_SOURCE, tweet.getSource());
     initialValues.put(KEY_USER_ID, tweet.userId);
 
     return mDb.insert(TWEET_TABLE, null, initialValues);
@@ -187,9 +255,49 @@ public class TwitterDbAdapter {
     return fetchUnreadCount();
   }
 
+  // Includes queued status updates, newest first above the timeline. They
+  // have negative ids so they can't clash with real tweets.
   public Cursor fetchAllTweets() {
-    return mDb.query(TWEET_TABLE, TWEET_COLUMNS, null, null, null, null, KEY_ID
-        + " DESC");
+    return mDb.rawQuery("SELECT * FROM (SELECT " + join(TWEET_COLUMNS)
+        + " FROM " + TWEET_TABLE + " UNION ALL SELECT -" + KEY_ID + ", "
+        + KEY_USER + ", " + KEY_TEXT + ", '', 0, " + KEY_CREATED_AT
+        + ", CASE WHEN " + KEY_ATTEMPTS + " < " + OUTBOX_MAX_ATTEMPTS
+        + " THEN ? ELSE ? END, NULL, 0 FROM " + OUTBOX_TABLE + " WHERE "
+        + KEY_TYPE + " = " + OUTBOX_TYPE_STATUS + ") ORDER BY " + KEY_ID
+        + " < 0 DESC, ABS(" + KEY_ID + ") DESC", new String[] {
+        PENDING_SOURCE, FAILED_SOURCE });
+  }
+
+  // Shown as the source of a status update that hasn't gone out yet.
+  private static final String PENDING_SOURCE = "Twitta (not sent yet)";
+  // And of one that was given up on.
+  private static final String FAILED_SOURCE = "Twitta (could not send)";
+
+  private static String join(String[] columns) {
+    StringBuilder builder = new StringBuilder();
+
+    for (String column : columns) {
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+
+      builder.append(column);
+    }
+
+    return builder.toString();
+  }
+
+  // Null if there are no tweets.
+  public String fetchNewestProfileImageUrl() {
+    Cursor cursor = mDb.query(TWEET_TABLE,
+        new String[] { KEY_PROFILE_IMAGE_URL }, null, null, null, null,
+        KEY_ID + " DESC", "1");
+
+    try {
+      return cursor.moveToFirst() ? cursor.getString(0) : null;
+    } finally {
+      cursor.close();
+    }
   }
 
   public Cursor fetchReplies() {
@@ -197,9 +305,14 @@ public class TwitterDbAdapter {
         null, null, KEY_ID + " DESC");
   }
 
+  // Includes queued DMs, as in fetchAllTweets().
   public Cursor fetchAllDms() {
-    return mDb.query(DM_TABLE, DM_COLUMNS, null, null, null, null, KEY_ID
-        + " DESC");
+    return mDb.rawQuery("SELECT * FROM (SELECT " + join(DM_COLUMNS) + " FROM "
+        + DM_TABLE + " UNION ALL SELECT -" + KEY_ID + ", " + KEY_USER + ", "
+        + KEY_TEXT + ", '', 0, 1, " + KEY_CREATED_AT + ", NULL FROM "
+        + OUTBOX_TABLE + " WHERE " + KEY_TYPE + " = " + OUTBOX_TYPE_DM
+        + ") ORDER BY " + KEY_ID + " < 0 DESC, ABS(" + KEY_ID + ") DESC",
+        null);
   }
 
   public Cursor fetchAllFollowers() {
@@ -237,6 +350,10 @@ public class TwitterDbAdapter {
     deleteAllTweets();
     deleteAllDms();
     deleteAllFollowers();
+    // Validators refer to data that is now gone.
+    deleteAllValidators();
+    deleteAllOutbox();
+    deleteAllUsers();
   }
 
   public boolean deleteAllTweets() {
@@ -251,10 +368,262 @@ public class TwitterDbAdapter {
     return mDb.delete(FOLLOWER_TABLE, null, null) > 0;
   }
 
+  public boolean deleteAllValidators() {
+    return mDb.delete(VALIDATOR_TABLE, null, null) > 0;
+  }
+
+  public boolean deleteAllOutbox() {
+    return mDb.delete(OUTBOX_TABLE, null, null) > 0;
+  }
+
+  public boolean deleteAllUsers() {
+    return mDb.delete(USER_TABLE, null, null) > 0;
+  }
+
+  // Outbox.
+
+  public long queueOutgoing(int type, String user, String text) {
+    ContentValues initialValues = new ContentValues();
+    initialValues.put(KEY_TYPE, type);
+    initialValues.put(KEY_USER, user);
+    initialValues.put(KEY_TEXT, text);
+    initialValues.put(KEY_CREATED_AT, DB_DATE_FORMATTER.format(new Date()));
+
+    return mDb.insert(OUTBOX_TABLE, null, initialValues);
+  }
+
+  // Status updates and DMs to send, oldest first, leaving out items that
+  // were given up on.
+  public Cursor fetchOutbox(int limit) {
+    return mDb.query(OUTBOX_TABLE, OUTBOX_COLUMNS, KEY_TYPE + " != "
+        + OUTBOX_TYPE_DM_DELETE + " AND " + KEY_ATTEMPTS + " < "
+        + OUTBOX_MAX_ATTEMPTS, null, null, null, KEY_ID + " ASC", limit + "");
+  }
+
+  // Remote DM deletes still to be done.
+  public Cursor fetchOutboxDeletes() {
+    return mDb.query(OUTBOX_TABLE, OUTBOX_COLUMNS, KEY_TYPE + " = "
+        + OUTBOX_TYPE_DM_DELETE + " AND " + KEY_ATTEMPTS + " < "
+        + OUTBOX_MAX_ATTEMPTS, null, null, null, KEY_ID + " ASC");
+  }
+
+  // Removes the DMs from the list and queues their remote deletes, in one
+  // go so that neither happens without the other.
+  public void queueDmDeletes(List<Long> ids) {
+    try {
+      mDb.beginTransaction();
+
+      deleteDms(ids);
+
+      for (Long id : ids) {
+        queueOutgoing(OUTBOX_TYPE_DM_DELETE, "", id + "");
+      }
+
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  // Items still to be sent.
+  public int fetchOutboxCount() {
+    Cursor mCursor = mDb.rawQuery("SELECT COUNT(" + KEY_ID + ") FROM "
+        + OUTBOX_TABLE + " WHERE " + KEY_ATTEMPTS + " < "
+        + OUTBOX_MAX_ATTEMPTS, null);
+
+    int result = 0;
+
+    if (mCursor == null) {
+      return result;
+    }
+
+    mCursor.moveToFirst();
+    result = mCursor.getInt(0);
+    mCursor.close();
+
+    return result;
+  }
+
+  public void incrementOutboxAttempts(long id) {
+    mDb.execSQL("UPDATE " + OUTBOX_TABLE + " SET " + KEY_ATTEMPTS + " = "
+        + KEY_ATTEMPTS + " + 1 WHERE " + KEY_ID + " = " + id);
+  }
+
+  // False once it has been sent, dropped or deleted by the user.
+  public boolean isOutgoingQueued(long id) {
+    Cursor cursor = mDb.query(OUTBOX_TABLE, new String[] { KEY_ID }, KEY_ID
+        + "=" + id, null, null, null, null);
+
+    try {
+      return cursor.moveToFirst();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  public boolean deleteOutgoing(long id) {
+    return mDb.delete(OUTBOX_TABLE, KEY_ID + "=" + id, null) > 0;
+  }
+
+  // Swaps a queued status update for the tweet the server made of it, so
+  // the row never disappears from the list.
+  public void completeOutgoing(long id, Tweet tweet) {
+    try {
+      mDb.beginTransaction();
+
+      deleteOutgoing(id);
+      createTweet(tweet, false);
+
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  public void completeOutgoing(long id, Dm dm) {
+    try {
+      mDb.beginTransaction();
+
+      deleteOutgoing(id);
+      createDm(dm, false);
+
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
   public boolean deleteDm(long id) {
     return mDb.delete(DM_TABLE, KEY_ID + "=" + id, null) > 0;
   }
 
+  public int deleteDms(Collection<Long> ids) {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+
+    StringBuilder where = new StringBuilder(KEY_ID + " IN (");
+    boolean isFirst = true;
+
+    for (Long id : ids) {
+      if (!isFirst) {
+        where.append(",");
+      }
+
+      where.append(id);
+      isFirst = false;
+    }
+
+    where.append(")");
+
+    try {
+      mDb.beginTransaction();
+
+      int count = mDb.delete(DM_TABLE, where.toString(), null);
+
+      mDb.setTransactionSuccessful();
+
+      return count;
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  public String[] fetchValidators(String url) {
+    Cursor cursor = mDb.query(VALIDATOR_TABLE, VALIDATOR_COLUMNS, KEY_URL
+        + "=?", new String[] { url }, null, null, null);
+
+    String[] result = null;
+
+    if (cursor != null && cursor.moveToFirst()) {
+      result = new String[] { cursor.getString(1), cursor.getString(2) };
+    }
+
+    cursor.close();
+
+    return result;
+  }
+
+  public void storeValidators(String url, String etag, String lastModified) {
+    ContentValues values = new ContentValues();
+    values.put(KEY_URL, url);
+    values.put(KEY_ETAG, etag);
+    values.put(KEY_LAST_MODIFIED, lastModified);
+    mDb.insert(VALIDATOR_TABLE, null, values);
+  }
+
+  // Users.
+
+  private void createUser(User user, long now) {
+    ContentValues values = new ContentValues();
+    values.put(KEY_USER, user.screenName);
+    values.put(KEY_USER_ID, user.id);
+    values.put(KEY_NAME, user.name);
+    values.put(KEY_LOCATION, user.getLocation());
+    values.put(KEY_DESCRIPTION, user.getDescription());
+    values.put(KEY_PROFILE_IMAGE_URL, user.profileImageUrl);
+    values.put(KEY_URL, user.getUrl());
+    values.put(KEY_UPDATED_AT, now);
+    mDb.insert(USER_TABLE, null, values);
+  }
+
+  public void storeUsers(Collection<User> users) {
+    long now = System.currentTimeMillis();
+
+    try {
+      mDb.beginTransaction();
+
+      for (User user : users) {
+        if (!Utils.isEmpty(user.screenName) && !Utils.isEmpty(user.id)) {
+          createUser(user, now);
+        }
+      }
+
+      mDb.execSQL("DELETE FROM " + USER_TABLE + " WHERE " + KEY_USER
+          + " NOT IN (SELECT " + KEY_USER + " FROM " + USER_TABLE
+          + " ORDER BY " + KEY_UPDATED_AT + " DESC LIMIT " + USER_LIMIT
+          + ")");
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  // Returns null if the user has never been seen.
+  public User fetchUser(String screenName) {
+    Cursor cursor = mDb.query(USER_TABLE, USER_COLUMNS, KEY_USER
+        + "=? COLLATE NOCASE", new String[] { screenName }, null, null, null);
+
+    User result = null;
+
+    if (cursor != null && cursor.moveToFirst()) {
+      result = User.create(cursor.getString(1), cursor.getString(2),
+          cursor.getString(0), cursor.getString(3), cursor.getString(4),
+          cursor.getString(5), cursor.getString(6));
+    }
+
+    cursor.close();
+
+    return result;
+  }
+
+  // True if the profile was stored less than maxAge milliseconds ago.
+  public boolean isUserFresh(String screenName, long maxAge) {
+    Cursor cursor = mDb.query(USER_TABLE, new String[] { KEY_UPDATED_AT },
+        KEY_USER + "=? COLLATE NOCASE", new String[] { screenName }, null,
+        null, null);
+
+    boolean result = false;
+
+    if (cursor != null && cursor.moveToFirst()) {
+      result = System.currentTimeMillis() - cursor.getLong(0) < maxAge;
+    }
+
+    cursor.close();
+
+    return result;
+  }
+
   public void markAllTweetsRead() {
     ContentValues values = new ContentValues();
     values.put(KEY_IS_UNREAD, 0);
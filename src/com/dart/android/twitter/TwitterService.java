@@ -16,17 +16,21 @@
 
 package com.dart.android.twitter;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.app.AlarmManager;
 import android.app.Notification;
@@ -98,6 +102,12 @@ public class TwitterService extends Service {
 
     schedule(TwitterService.this);
 
+    if (!getApi().canRunInBackground()) {
+      Log.i(TAG, "Rate limit is low. Skipping this poll.");
+      stopSelf();
+      return;
+    }
+
     mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
     mNewTweets = new ArrayList<Tweet>();
@@ -115,17 +125,6 @@ public class TwitterService extends Service {
 
     int count = getDb().addNewTweetsAndCountUnread(mNewTweets);
 
-    for (Tweet tweet : mNewTweets) {
-      if (!Utils.isEmpty(tweet.profileImageUrl)) {
-        // Fetch image to cache.
-        try {
-          TwitterApplication.mImageManager.put(tweet.profileImageUrl);
-        } catch (IOException e) {
-          Log.e(TAG, e.getMessage(), e);
-        }
-      }
-    }
-
     if (count <= 0) {
       return;
     }
@@ -201,17 +200,6 @@ public class TwitterService extends Service {
       db.addDms(mNewDms, false);
     }
 
-    for (Dm dm : mNewDms) {
-      if (!Utils.isEmpty(dm.profileImageUrl)) {
-        // Fetch image to cache.
-        try {
-          TwitterApplication.mImageManager.put(dm.profileImageUrl);
-        } catch (IOException e) {
-          Log.e(TAG, e.getMessage(), e);
-        }
-      }
-    }
-
     if (count <= 0) {
       return;
     }
@@ -251,6 +239,25 @@ public class TwitterService extends Service {
     super.onDestroy();
   }
 
+  // "adb shell dumpsys activity service
+  // com.dart.android.twitter/.TwitterService" while the service is running.
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    PooledConnectionManager connectionManager = TwitterApi
+        .getConnectionManager();
+    pw.println("Connections: leased=" + connectionManager.getLeaseCount()
+        + " reused=" + connectionManager.getReuseCount() + " new="
+        + connectionManager.getNewConnectionCount());
+    pw.println("Collapsed calls: "
+        + TwitterApplication.mApi.getCollapsedRequestCount());
+    pw.println("Image memory cache: "
+        + TwitterApplication.mImageManager.getMemoryCacheStats());
+    pw.println("Image disk cache: "
+        + TwitterApplication.mImageManager.getDiskCacheStats());
+
+    NetworkStats.getInstance().dump(pw);
+  }
+
   static void schedule(Context context) {
     SharedPreferences preferences = PreferenceManager
         .getDefaultSharedPreferences(context);
@@ -295,13 +302,98 @@ public class TwitterService extends Service {
   private class RetrieveTask extends UserTask<Void, Void, RetrieveResult> {
     @Override
     public RetrieveResult doInBackground(Void... params) {
+      // The timeline and DM requests don't depend on each other, so run them
+      // side by side to keep the radio and wake lock on for less time.
+      // Queued sends go out alongside them while the radio is up.
+      // Its threads abort their requests when interrupted, so cancelling a
+      // leg stops its transfer too.
+      ExecutorService executor = Executors.newFixedThreadPool(3,
+          RequestScope.newThreadFactory(TAG));
+
+      Future<?> outboxResult = null;
+
+      if (getDb().fetchOutboxCount() > 0) {
+        outboxResult = executor.submit(new Runnable() {
+          public void run() {
+            Log.i(TAG, "Outbox drained: " + Outbox.drain(getApi(), getDb(),
+                TwitterApplication.mImageManager));
+          }
+        });
+      }
+
+      Future<RetrieveResult> tweetsResult = executor.submit(
+          new Callable<RetrieveResult>() {
+        public RetrieveResult call() {
+          return retrieveTweets();
+        }
+      });
+
+      Future<RetrieveResult> dmsResult = executor.submit(
+          new Callable<RetrieveResult>() {
+        public RetrieveResult call() {
+          return retrieveDms();
+        }
+      });
+
+      try {
+        RetrieveResult result = tweetsResult.get();
+
+        if (result == RetrieveResult.OK) {
+          result = dmsResult.get();
+        }
+
+        // Keep the wake lock until the sends are done too.
+        if (outboxResult != null) {
+          outboxResult.get();
+        }
+
+        if (result == RetrieveResult.OK) {
+          prefetchImages();
+        }
+
+        return result;
+      } catch (InterruptedException e) {
+        // cancel() from onDestroy interrupts us here.
+        Log.i(TAG, "Retrieve interrupted.");
+        return RetrieveResult.CANCELLED;
+      } catch (ExecutionException e) {
+        Log.e(TAG, e.getMessage(), e);
+        return RetrieveResult.IO_ERROR;
+      } finally {
+        // Abort whichever leg is still running.
+        tweetsResult.cancel(true);
+        dmsResult.cancel(true);
+        executor.shutdownNow();
+      }
+    }
+
+    // Fetch images to cache, side by side, while the radio is still up.
+    private void prefetchImages() throws InterruptedException {
+      HashSet<String> imageUrls = new HashSet<String>();
+
+      for (Tweet tweet : mNewTweets) {
+        imageUrls.add(tweet.profileImageUrl);
+      }
+
+      for (Dm dm : mNewDms) {
+        imageUrls.add(dm.profileImageUrl);
+      }
+
+      TwitterApplication.mImageManager.prefetch(imageUrls,
+          ImageManager.DEFAULT_PREFETCH_TIMEOUT_MS);
+    }
+
+    private RetrieveResult retrieveTweets() {
       long maxId = getDb().fetchMaxId();
       Log.i(TAG, "Max id is:" + maxId);
 
-      JSONArray jsonArray;
-
       try {
-        jsonArray = getApi().getTimelineSinceId(maxId);
+        getApi().getTimelineSinceId(maxId, new TwitterApi.ItemHandler<Tweet>() {
+          public boolean handle(Tweet tweet) {
+            mNewTweets.add(tweet);
+            return !isCancelled();
+          }
+        });
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return RetrieveResult.IO_ERROR;
@@ -313,33 +405,24 @@ public class TwitterService extends Service {
         return RetrieveResult.IO_ERROR;
       }
 
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
-
-        Tweet tweet;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          tweet = Tweet.create(jsonObject);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return RetrieveResult.IO_ERROR;
-        }
-
-        mNewTweets.add(tweet);
-      }
-
       if (isCancelled()) {
         return RetrieveResult.CANCELLED;
       }
 
-      maxId = getDb().fetchMaxDmId(false);
+      return RetrieveResult.OK;
+    }
+
+    private RetrieveResult retrieveDms() {
+      long maxId = getDb().fetchMaxDmId(false);
       Log.i(TAG, "Max DM id is:" + maxId);
 
       try {
-        jsonArray = getApi().getDmsSinceId(maxId, false);
+        getApi().getDmsSinceId(maxId, false, new TwitterApi.ItemHandler<Dm>() {
+          public boolean handle(Dm dm) {
+            mNewDms.add(dm);
+            return !isCancelled();
+          }
+        });
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return RetrieveResult.IO_ERROR;
@@ -351,24 +434,6 @@ public class TwitterService extends Service {
         return RetrieveResult.IO_ERROR;
       }
 
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return RetrieveResult.CANCELLED;
-        }
-
-        Dm dm;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          dm = Dm.create(jsonObject, false);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return RetrieveResult.IO_ERROR;
-        }
-
-        mNewDms.add(dm);
-      }
-
       if (isCancelled()) {
         return RetrieveResult.CANCELLED;
       }
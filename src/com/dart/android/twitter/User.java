@@ -1,5 +1,7 @@
 package com.dart.android.twitter;
 
+import java.io.IOException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -8,10 +10,49 @@ public class User {
   public String id = "";
   public String name = "";
   public String screenName = "";
-  public String location = "";
-  public String description = "";
   public String profileImageUrl = "";
-  public String url = "";
+
+  // Only the profile screen shows these, so they are kept raw and decoded
+  // on first use.
+  private String mLocation = "";
+  private boolean mIsLocationDecoded = true;
+  private String mDescription = "";
+  private boolean mIsDescriptionDecoded = true;
+  private String mUrl = "";
+
+  public String getLocation() {
+    if (!mIsLocationDecoded) {
+      mLocation = Utils.decodeTwitterJson(mLocation);
+      mIsLocationDecoded = true;
+    }
+
+    return mLocation;
+  }
+
+  public String getDescription() {
+    if (!mIsDescriptionDecoded) {
+      mDescription = Utils.decodeTwitterJson(mDescription);
+      mIsDescriptionDecoded = true;
+    }
+
+    return mDescription;
+  }
+
+  public String getUrl() {
+    return mUrl;
+  }
+
+  void copyFrom(User user) {
+    id = user.id;
+    name = user.name;
+    screenName = user.screenName;
+    profileImageUrl = user.profileImageUrl;
+    mLocation = user.mLocation;
+    mIsLocationDecoded = user.mIsLocationDecoded;
+    mDescription = user.mDescription;
+    mIsDescriptionDecoded = user.mIsDescriptionDecoded;
+    mUrl = user.mUrl;
+  }
 
   public static User create(JSONObject jsonObject) throws JSONException {
     User user = new User();
@@ -19,11 +60,71 @@ public class User {
     user.id = jsonObject.getString("id");    
     user.name = Utils.decodeTwitterJson(jsonObject.getString("name"));
     user.screenName = Utils.decodeTwitterJson(jsonObject.getString("screen_name"));
-    user.location = Utils.decodeTwitterJson(jsonObject.getString("location"));
-    user.description = Utils.decodeTwitterJson(jsonObject.getString("description"));
+    user.mLocation = jsonObject.getString("location");
+    user.mIsLocationDecoded = false;
+    user.mDescription = jsonObject.getString("description");
+    user.mIsDescriptionDecoded = false;
     user.profileImageUrl = jsonObject.getString("profile_image_url");
-    user.url = jsonObject.getString("url");
+    user.mUrl = jsonObject.getString("url");
         
     return user;
   }  
+
+  // For profiles that were stored already decoded.
+  static User create(String id, String name, String screenName,
+      String location, String description, String profileImageUrl,
+      String url) {
+    User user = new User();
+
+    user.id = id;
+    user.name = name;
+    user.screenName = screenName;
+    user.mLocation = location;
+    user.mDescription = description;
+    user.profileImageUrl = profileImageUrl;
+    user.mUrl = url;
+
+    return user;
+  }
+
+  // Missing or null fields are left empty.
+  public static User create(JsonPullParser parser) throws IOException {
+    User user = new User();
+
+    parser.beginObject();
+
+    while (parser.hasNext()) {
+      String name = parser.nextName();
+
+      if ("id".equals(name)) {
+        user.id = parser.nextString();
+      } else if ("name".equals(name)) {
+        user.name = Utils.decodeTwitterJson(orEmpty(parser));
+      } else if ("screen_name".equals(name)) {
+        user.screenName = Utils.decodeTwitterJson(orEmpty(parser));
+      } else if ("location".equals(name)) {
+        user.mLocation = orEmpty(parser);
+        user.mIsLocationDecoded = false;
+      } else if ("description".equals(name)) {
+        user.mDescription = orEmpty(parser);
+        user.mIsDescriptionDecoded = false;
+      } else if ("profile_image_url".equals(name)) {
+        user.profileImageUrl = orEmpty(parser);
+      } else if ("url".equals(name)) {
+        user.mUrl = orEmpty(parser);
+      } else {
+        parser.skipValue();
+      }
+    }
+
+    parser.endObject();
+
+    return user;
+  }
+
+  private static String orEmpty(JsonPullParser parser) throws IOException {
+    String value = parser.nextStringOrNull();
+
+    return value != null ? value : "";
+  }
 }
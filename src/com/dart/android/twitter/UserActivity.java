@@ -2,8 +2,11 @@ package com.dart.android.twitter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -44,7 +47,10 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
   private User mUser;
   private Boolean mIsFollowing;
   private Boolean mIsFollower = false;
-  private int mNextPage = 1;
+  // Paging cursor: the highest id the next page may contain, 0 for the
+  // newest page, -1 once there is nothing older.
+  private long mMaxId = 0;
+  private HashSet<String> mTweetIds;
   private Bitmap mProfileBitmap;
 
   private static class State {
@@ -53,7 +59,8 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
       mUser = activity.mUser;
       mIsFollowing = activity.mIsFollowing;
       mIsFollower = activity.mIsFollower;
-      mNextPage = activity.mNextPage;
+      mMaxId = activity.mMaxId;
+      mTweetIds = activity.mTweetIds;
       mProfileBitmap = activity.mProfileBitmap;
     }
 
@@ -61,7 +68,8 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
     public User mUser;
     public boolean mIsFollowing;
     public boolean mIsFollower;
-    public int mNextPage;
+    public long mMaxId;
+    public HashSet<String> mTweetIds;
     public Bitmap mProfileBitmap;
   }
 
@@ -130,6 +138,7 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
     mUserText.setText(mUsername);
 
     mTweets = new ArrayList<Tweet>();
+    mTweetIds = new HashSet<String>();
     mAdapter = new TweetAdapter(this);
     mTweetList.setAdapter(mAdapter);
     registerForContextMenu(mTweetList);
@@ -144,10 +153,25 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
       mUser = state.mUser;
       mIsFollowing = state.mIsFollowing;
       mIsFollower = state.mIsFollower;
-      mNextPage = state.mNextPage;
+      mMaxId = state.mMaxId;
+      mTweetIds = state.mTweetIds;
       mProfileBitmap = state.mProfileBitmap;
       draw();
     } else {
+      // Profiles of timeline authors are stored as they arrive, so the
+      // header can usually be drawn before the timeline comes in.
+      mUser = getDb().fetchUser(mUsername);
+
+      if (mUser != null) {
+        if (!Utils.isEmpty(mUser.profileImageUrl)) {
+          // Only if it is in memory. RetrieveTask reads it from disk.
+          mProfileBitmap = getImageManager().getCached(
+              mUser.profileImageUrl);
+        }
+
+        draw();
+      }
+
       doRetrieve();
     }
 
@@ -283,13 +307,48 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
 
     @Override
     public TaskResult doInBackground(Void... params) {
-      JSONArray jsonArray;
+      // The friendship checks don't depend on the timeline, so send them
+      // alongside it. Recently viewed profiles are answered from the cache.
+      AsyncTwitterApi asyncApi = getAsyncApi();
+      Future<Boolean> isFollowing = asyncApi.isFollows(mMe, mUsername, null);
+      Future<Boolean> isFollower = asyncApi.isFollows(mUsername, mMe, null);
 
+      try {
+        return retrieve(isFollowing, isFollower);
+      } finally {
+        // Does nothing if they have finished.
+        isFollowing.cancel(true);
+        isFollower.cancel(true);
+      }
+    }
+
+    private TaskResult retrieve(Future<Boolean> isFollowing,
+        Future<Boolean> isFollower) {
       TwitterApi api = getApi();
       ImageManager imageManager = getImageManager();
+      User storedUser = mUser;
+
+      if (mProfileBitmap == null && storedUser != null
+          && !Utils.isEmpty(storedUser.profileImageUrl)) {
+        // Show the stored avatar while the timeline is on its way.
+        setProfileBitmap(imageManager.get(storedUser.profileImageUrl));
+        publishProgress();
+      }
 
       try {
-        jsonArray = api.getUserTimeline(mUsername, mNextPage);
+        api.getUserTimeline(mUsername, mMaxId,
+            new TwitterApi.ItemHandler<Tweet>() {
+          public boolean handle(Tweet tweet) {
+            mTweets.add(tweet);
+            return !isCancelled();
+          }
+        }, new TwitterApi.ItemHandler<User>() {
+          public boolean handle(User user) {
+            mUser = user;
+            getDb().storeUsers(Collections.singletonList(user));
+            return true;
+          }
+        });
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return TaskResult.IO_ERROR;
@@ -301,29 +360,8 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
         return TaskResult.IO_ERROR;
       }
 
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return TaskResult.CANCELLED;
-        }
-
-        Tweet tweet;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          tweet = Tweet.create(jsonObject);
-          mTweets.add(tweet);
-
-          if (mUser == null) {
-            mUser = User.create(jsonObject.getJSONObject("user"));
-          }
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return TaskResult.IO_ERROR;
-        }
-
-        if (isCancelled()) {
-          return TaskResult.CANCELLED;
-        }
+      if (isCancelled()) {
+        return TaskResult.CANCELLED;
       }
 
       addTweets(mTweets);
@@ -349,15 +387,17 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
       publishProgress();
 
       try {
-        mIsFollowing = api.isFollows(mMe, mUsername);
-        mIsFollower = api.isFollows(mUsername, mMe);
-      } catch (IOException e) {
-        Log.e(TAG, e.getMessage(), e);
-        return TaskResult.IO_ERROR;
-      } catch (AuthException e) {
-        Log.i(TAG, "Invalid authorization.");
-        return TaskResult.AUTH_ERROR;
-      } catch (ApiException e) {
+        mIsFollowing = isFollowing.get();
+        mIsFollower = isFollower.get();
+      } catch (InterruptedException e) {
+        Log.i(TAG, "Retrieve interrupted.");
+        return TaskResult.CANCELLED;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof AuthException) {
+          Log.i(TAG, "Invalid authorization.");
+          return TaskResult.AUTH_ERROR;
+        }
+
         Log.e(TAG, e.getMessage(), e);
         return TaskResult.IO_ERROR;
       }
@@ -400,12 +440,16 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
 
     @Override
     public TaskResult doInBackground(Void... params) {
-      JSONArray jsonArray;
-
       TwitterApi api = getApi();
 
       try {
-        jsonArray = api.getUserTimeline(mUsername, mNextPage);
+        api.getUserTimeline(mUsername, mMaxId,
+            new TwitterApi.ItemHandler<Tweet>() {
+          public boolean handle(Tweet tweet) {
+            mTweets.add(tweet);
+            return !isCancelled();
+          }
+        }, null);
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
         return TaskResult.IO_ERROR;
@@ -417,23 +461,6 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
         return TaskResult.IO_ERROR;
       }
 
-      for (int i = 0; i < jsonArray.length(); ++i) {
-        if (isCancelled()) {
-          return TaskResult.CANCELLED;
-        }
-
-        Tweet tweet;
-
-        try {
-          JSONObject jsonObject = jsonArray.getJSONObject(i);
-          tweet = Tweet.create(jsonObject);
-          mTweets.add(tweet);
-        } catch (JSONException e) {
-          Log.e(TAG, e.getMessage(), e);
-          return TaskResult.IO_ERROR;
-        }
-      }
-
       if (isCancelled()) {
         return TaskResult.CANCELLED;
       }
@@ -730,7 +757,7 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
       Utils.setTweetText(holder.tweetText, tweet.text);
 
       holder.metaText.setText(Tweet.buildMetaText(mMetaBuilder,
-          tweet.createdAt, tweet.source));
+          tweet.createdAt, tweet.getSource()));
 
       return view;
     }
@@ -744,18 +771,29 @@ public class UserActivity extends BaseActivity implements MyListView.OnNeedMoreL
   }
 
   public boolean isLastPage() {
-    return mNextPage == -1;
+    return mMaxId == -1;
   }
 
+  // Skips tweets already shown and moves the cursor below the oldest one.
   private synchronized void addTweets(ArrayList<Tweet> tweets) {
-    if (tweets.size() == 0) {
-      mNextPage = -1;
-      return;
+    long minId = Long.MAX_VALUE;
+    boolean added = false;
+
+    for (Tweet tweet : tweets) {
+      minId = Math.min(minId, Long.parseLong(tweet.id));
+
+      if (mTweetIds.add(tweet.id)) {
+        mTweets.add(tweet);
+        added = true;
+      }
     }
 
-    mTweets.addAll(tweets);
+    if (!added || minId <= 1) {
+      mMaxId = -1;
+      return;
+    }
 
-    ++mNextPage;
+    mMaxId = minId - 1;
   }
 
   private synchronized void setProfileBitmap(Bitmap bitmap) {
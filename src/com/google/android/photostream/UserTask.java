@@ -159,6 +159,34 @@ public abstract class UserTask<Params, Progress, Result> {
 
     private volatile Status mStatus = Status.PENDING;
 
+    private static volatile CancelHook sCancelHook;
+
+    // The thread running doInBackground(), guarded by mWorkerLock.
+    private Thread mWorkerThread;
+    private final Object mWorkerLock = new Object();
+
+    /**
+     * Told about running tasks that are cancelled with mayInterruptIfRunning,
+     * so that work which ignores interrupts, such as a blocked socket read,
+     * can be stopped too.
+     */
+    public interface CancelHook {
+        /**
+         * Called on the cancelling thread. The worker does not move on to
+         * another task until this returns.
+         *
+         * @param worker The thread running the cancelled task.
+         */
+        void onCancel(Thread worker);
+    }
+
+    /**
+     * Sets the hook called for every cancelled task, or null for none.
+     */
+    public static void setCancelHook(CancelHook hook) {
+        sCancelHook = hook;
+    }
+
     /**
      * Indicates the current status of the task. Each status will be set only once
      * during the lifetime of a task.
@@ -185,7 +213,18 @@ public abstract class UserTask<Params, Progress, Result> {
         mWorker = new WorkerRunnable<Params, Result>() {
             public Result call() throws Exception {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-                return doInBackground(mParams);
+
+                synchronized (mWorkerLock) {
+                    mWorkerThread = Thread.currentThread();
+                }
+
+                try {
+                    return doInBackground(mParams);
+                } finally {
+                    synchronized (mWorkerLock) {
+                        mWorkerThread = null;
+                    }
+                }
             }
         };
 
@@ -325,7 +364,17 @@ public abstract class UserTask<Params, Progress, Result> {
      * @see #onCancelled()
      */
     public final boolean cancel(boolean mayInterruptIfRunning) {
-        return mFuture.cancel(mayInterruptIfRunning);
+        synchronized (mWorkerLock) {
+            boolean cancelled = mFuture.cancel(mayInterruptIfRunning);
+            CancelHook hook = sCancelHook;
+
+            if (cancelled && mayInterruptIfRunning && mWorkerThread != null
+                    && hook != null) {
+                hook.onCancel(mWorkerThread);
+            }
+
+            return cancelled;
+        }
     }
 
     /**
@@ -0,0 +1,1045 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dart.android.twitter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A small stand-in for the Twitter, Search and TwitPic APIs that serves
+ * generated data over real sockets, so that the networking code can be
+ * exercised and timed repeatably without touching the live service.
+ *
+ * It lives outside src so it isn't built into the app. It only uses the
+ * plain Java runtime and is run from a desktop JVM:
+ *
+ *   javac -d /tmp/mock tools/src/com/dart/android/twitter/MockTwitterServer.java
+ *   java -cp /tmp/mock com.dart.android.twitter.MockTwitterServer \
+ *       --port 8080 --latency 200 --jitter 100 --error-rate 0.05
+ *
+ * and then pointed at with, e.g. from the emulator (10.0.2.2 is the host):
+ *
+ *   api.setBaseUrls("http://10.0.2.2:8080", "http://10.0.2.2:8080",
+ *       "http://10.0.2.2:8080");
+ *
+ * Timelines honour count, page, since_id and max_id. Responses carry an
+ * ETag (answered with 304 when it matches) and X-RateLimit headers, and are
+ * gzipped when the client asks for it. Avatars are small generated PNGs
+ * under /images/.
+ */
+public class MockTwitterServer {
+  private static final String TAG = "MockTwitterServer";
+
+  private static final int DEFAULT_PORT = 8080;
+  private static final int DEFAULT_COUNT = 20;
+  private static final int RATE_LIMIT = 150;
+  private static final int RATE_LIMIT_PERIOD_SECS = 3600;
+  private static final int KEEP_ALIVE_TIMEOUT_MS = 15 * 1000;
+  private static final int USER_COUNT = 50;
+  private static final int AVATAR_SIZE = 48;
+
+  private static final String CRLF = "\r\n";
+  private static final String JSON_TYPE = "application/json; charset=utf-8";
+
+  private int mPort = DEFAULT_PORT;
+  private int mLatencyMs = 0;
+  private int mJitterMs = 0;
+  private double mErrorRate = 0;
+  private int mItemCount = 500;
+  private int mTextLength = 80;
+  private boolean mGzip = true;
+
+  private final Random mRandom = new Random();
+
+  private ServerSocket mServerSocket;
+  private Thread mAcceptThread;
+  private volatile boolean mRunning;
+
+  // Guarded by this.
+  private final ArrayList<Item> mTweets = new ArrayList<Item>();
+  private final ArrayList<Item> mDms = new ArrayList<Item>();
+  private final ArrayList<Item> mSentDms = new ArrayList<Item>();
+  private long mNextId = 1;
+  private int mRemaining = RATE_LIMIT;
+  private long mResetTime;
+
+  // The Host the current request was sent to, so that avatar URLs point
+  // back at whatever address the client reached us on.
+  private final ThreadLocal<String> mHost = new ThreadLocal<String>();
+
+  private final HashMap<Integer, byte[]> mAvatars =
+      new HashMap<Integer, byte[]>();
+
+  private static class Item {
+    long id;
+    int user;
+    int recipient;
+    String text;
+    Date createdAt;
+  }
+
+  private static class Request {
+    String method;
+    String path;
+    HashMap<String, String> params = new HashMap<String, String>();
+    HashMap<String, String> headers = new HashMap<String, String>();
+    byte[] body;
+  }
+
+  private static class Response {
+    int status = 200;
+    String reason = "OK";
+    String contentType = JSON_TYPE;
+    byte[] body = new byte[0];
+    boolean cacheable = true;
+  }
+
+  public MockTwitterServer() {
+  }
+
+  public MockTwitterServer setPort(int port) {
+    mPort = port;
+    return this;
+  }
+
+  // Each response is held back by latency plus up to jitter milliseconds.
+  public MockTwitterServer setLatency(int latencyMs, int jitterMs) {
+    mLatencyMs = latencyMs;
+    mJitterMs = jitterMs;
+    return this;
+  }
+
+  // The fraction, between 0 and 1, of requests that fail with a 500.
+  public MockTwitterServer setErrorRate(double errorRate) {
+    mErrorRate = errorRate;
+    return this;
+  }
+
+  // How many tweets (and direct messages) exist before anything is posted.
+  public MockTwitterServer setItemCount(int itemCount) {
+    mItemCount = itemCount;
+    return this;
+  }
+
+  // Roughly how long each generated text is, to vary the payload size.
+  public MockTwitterServer setTextLength(int textLength) {
+    mTextLength = textLength;
+    return this;
+  }
+
+  public MockTwitterServer setGzip(boolean gzip) {
+    mGzip = gzip;
+    return this;
+  }
+
+  public int getPort() {
+    return mServerSocket != null ? mServerSocket.getLocalPort() : mPort;
+  }
+
+  public synchronized void start() throws IOException {
+    if (mRunning) {
+      return;
+    }
+
+    populate();
+
+    mServerSocket = new ServerSocket(mPort);
+    mRunning = true;
+
+    mAcceptThread = new Thread(new Runnable() {
+      public void run() {
+        acceptLoop();
+      }
+    }, TAG);
+    mAcceptThread.setDaemon(true);
+    mAcceptThread.start();
+
+    log("Listening on port " + getPort());
+  }
+
+  public void stop() {
+    mRunning = false;
+
+    try {
+      if (mServerSocket != null) {
+        mServerSocket.close();
+      }
+    } catch (IOException e) {
+      log("Could not close server socket: " + e);
+    }
+  }
+
+  private void acceptLoop() {
+    while (mRunning) {
+      final Socket socket;
+
+      try {
+        socket = mServerSocket.accept();
+      } catch (IOException e) {
+        if (mRunning) {
+          log("Accept failed: " + e);
+        }
+        break;
+      }
+
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          serve(socket);
+        }
+      }, TAG + "-connection");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  private synchronized void populate() {
+    mTweets.clear();
+    mDms.clear();
+    mSentDms.clear();
+    mNextId = 1;
+    mRemaining = RATE_LIMIT;
+    mResetTime = System.currentTimeMillis() / 1000 + RATE_LIMIT_PERIOD_SECS;
+
+    long now = System.currentTimeMillis();
+
+    // Oldest first, a minute apart, so ids and dates agree.
+    for (int i = 0; i < mItemCount; ++i) {
+      Date createdAt = new Date(now - (mItemCount - i) * 60 * 1000L);
+      mTweets.add(newItem(i % USER_COUNT, 0, createdAt));
+      mDms.add(newItem(i % USER_COUNT, 0, createdAt));
+      mSentDms.add(newItem(0, i % USER_COUNT, createdAt));
+    }
+  }
+
+  // Callers hold the lock.
+  private Item newItem(int user, int recipient, Date createdAt) {
+    Item item = new Item();
+    item.id = mNextId++;
+    item.user = user;
+    item.recipient = recipient;
+    item.createdAt = createdAt;
+
+    StringBuilder text = new StringBuilder("Status " + item.id + ":");
+
+    while (text.length() < mTextLength) {
+      text.append(" lorem");
+    }
+
+    item.text = text.toString();
+
+    return item;
+  }
+
+  // Connection handling.
+
+  private void serve(Socket socket) {
+    try {
+      socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+
+      while (mRunning) {
+        Request request = readRequest(in);
+
+        if (request == null) {
+          break;
+        }
+
+        String host = request.headers.get("host");
+        mHost.set(host != null ? host : "localhost:" + getPort());
+
+        Response response = handle(request);
+        delay();
+        writeResponse(out, request, response);
+
+        if ("close".equalsIgnoreCase(request.headers.get("connection"))) {
+          break;
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      // Idle keep-alive connection.
+    } catch (IOException e) {
+      log("Connection failed: " + e);
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  private void delay() {
+    int ms = mLatencyMs + (mJitterMs > 0 ? mRandom.nextInt(mJitterMs) : 0);
+
+    if (ms <= 0) {
+      return;
+    }
+
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+
+    while ((c = in.read()) != -1) {
+      if (c == '\n') {
+        break;
+      } else if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+
+    if (c == -1 && line.length() == 0) {
+      return null;
+    }
+
+    return line.toString();
+  }
+
+  private static Request readRequest(InputStream in) throws IOException {
+    String requestLine = readLine(in);
+
+    if (requestLine == null || requestLine.length() == 0) {
+      return null;
+    }
+
+    String[] parts = requestLine.split(" ");
+
+    if (parts.length < 2) {
+      throw new IOException("Bad request line: " + requestLine);
+    }
+
+    Request request = new Request();
+    request.method = parts[0];
+
+    String target = parts[1];
+
+    // Absolute URIs are only sent to proxies, but be lenient.
+    int schemeEnd = target.indexOf("://");
+
+    if (schemeEnd >= 0) {
+      int pathStart = target.indexOf('/', schemeEnd + 3);
+      target = pathStart >= 0 ? target.substring(pathStart) : "/";
+    }
+
+    int queryStart = target.indexOf('?');
+
+    if (queryStart >= 0) {
+      parseParams(target.substring(queryStart + 1), request.params);
+      target = target.substring(0, queryStart);
+    }
+
+    request.path = target;
+
+    String line;
+
+    while ((line = readLine(in)) != null && line.length() > 0) {
+      int colon = line.indexOf(':');
+
+      if (colon > 0) {
+        request.headers.put(line.substring(0, colon).trim().toLowerCase(),
+            line.substring(colon + 1).trim());
+      }
+    }
+
+    String length = request.headers.get("content-length");
+    int contentLength = length != null ? Integer.parseInt(length) : 0;
+    request.body = new byte[contentLength];
+
+    int read = 0;
+
+    while (read < contentLength) {
+      int n = in.read(request.body, read, contentLength - read);
+
+      if (n == -1) {
+        throw new IOException("Truncated request body.");
+      }
+
+      read += n;
+    }
+
+    String contentType = request.headers.get("content-type");
+
+    if (contentType != null
+        && contentType.startsWith("application/x-www-form-urlencoded")) {
+      parseParams(new String(request.body, "UTF-8"), request.params);
+    }
+
+    return request;
+  }
+
+  private static void parseParams(String query, HashMap<String, String> params)
+      throws UnsupportedEncodingException {
+    for (String pair : query.split("&")) {
+      if (pair.length() == 0) {
+        continue;
+      }
+
+      int equals = pair.indexOf('=');
+
+      if (equals < 0) {
+        params.put(URLDecoder.decode(pair, "UTF-8"), "");
+      } else {
+        params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+      }
+    }
+  }
+
+  private void writeResponse(OutputStream out, Request request,
+      Response response) throws IOException {
+    byte[] body = response.body;
+    String etag = null;
+
+    if (response.status == 200 && response.cacheable) {
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      etag = "\"" + Long.toHexString(crc.getValue()) + "\"";
+
+      if (etag.equals(request.headers.get("if-none-match"))) {
+        response.status = 304;
+        response.reason = "Not Modified";
+        body = new byte[0];
+      }
+    }
+
+    String encoding = null;
+    String acceptEncoding = request.headers.get("accept-encoding");
+
+    if (mGzip && body.length > 0 && acceptEncoding != null
+        && acceptEncoding.indexOf("gzip") >= 0) {
+      ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+      gzip.write(body);
+      gzip.close();
+      body = gzipped.toByteArray();
+      encoding = "gzip";
+    }
+
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(response.status).append(' ')
+        .append(response.reason).append(CRLF);
+    head.append("Content-Length: ").append(body.length).append(CRLF);
+
+    if (body.length > 0) {
+      head.append("Content-Type: ").append(response.contentType).append(CRLF);
+    }
+
+    if (encoding != null) {
+      head.append("Content-Encoding: ").append(encoding).append(CRLF);
+    }
+
+    if (etag != null) {
+      head.append("ETag: ").append(etag).append(CRLF);
+    }
+
+    synchronized (this) {
+      head.append("X-RateLimit-Limit: ").append(RATE_LIMIT).append(CRLF);
+      head.append("X-RateLimit-Remaining: ").append(mRemaining).append(CRLF);
+      head.append("X-RateLimit-Reset: ").append(mResetTime).append(CRLF);
+    }
+
+    head.append(CRLF);
+
+    out.write(head.toString().getBytes("US-ASCII"));
+
+    // A HEAD answer has the headers of a GET but never a body.
+    if (!"HEAD".equals(request.method)) {
+      out.write(body);
+    }
+
+    out.flush();
+
+    log(request.method + " " + request.path + " " + response.status + " "
+        + body.length);
+  }
+
+  // Routing.
+
+  private Response handle(Request request) throws IOException {
+    chargeRateLimit();
+
+    if (mErrorRate > 0 && mRandom.nextDouble() < mErrorRate) {
+      return error(500, "Internal Server Error");
+    }
+
+    String path = request.path;
+
+    if (path.startsWith("/images/")) {
+      return avatar(path);
+    }
+
+    boolean isPost = "POST".equals(request.method);
+
+    if (path.equals("/statuses/friends_timeline.json")) {
+      return json(timeline(mTweets, request, -1));
+    } else if (path.equals("/statuses/user_timeline.json")) {
+      return json(timeline(mTweets, request,
+          userIndex(request.params.get("screen_name"))));
+    } else if (path.equals("/direct_messages.json")) {
+      return json(dms(mDms, request));
+    } else if (path.equals("/direct_messages/sent.json")) {
+      return json(dms(mSentDms, request));
+    } else if (path.equals("/direct_messages/new.json") && isPost) {
+      return newDm(request);
+    } else if (path.startsWith("/direct_messages/destroy/") && isPost) {
+      return destroyDm(path);
+    } else if (path.equals("/statuses/update.json") && isPost) {
+      return update(request);
+    } else if (path.equals("/help/test.json")) {
+      return json("\"ok\"");
+    } else if (path.equals("/account/verify_credentials.json")) {
+      return json(userJson(0));
+    } else if (path.equals("/users/lookup.json")) {
+      return json(lookupUsers(request));
+    } else if (path.equals("/followers/ids.json")) {
+      return json(followerIds());
+    } else if (path.equals("/friendships/exists.json")) {
+      return json(friendshipExists(request));
+    } else if (path.startsWith("/friendships/create/") && isPost) {
+      return json(userJson(idFromPath(path) % USER_COUNT));
+    } else if (path.startsWith("/friendships/destroy/") && isPost) {
+      return json(userJson(idFromPath(path) % USER_COUNT));
+    } else if (path.equals("/search.json")) {
+      return json(search(request));
+    } else if (path.endsWith("/uploadAndPost") && isPost) {
+      return upload(request);
+    }
+
+    return error(404, "Not Found");
+  }
+
+  private synchronized void chargeRateLimit() {
+    long now = System.currentTimeMillis() / 1000;
+
+    if (now >= mResetTime) {
+      mRemaining = RATE_LIMIT;
+      mResetTime = now + RATE_LIMIT_PERIOD_SECS;
+    }
+
+    if (mRemaining > 0) {
+      --mRemaining;
+    }
+  }
+
+  private static Response error(int status, String reason) {
+    Response response = new Response();
+    response.status = status;
+    response.reason = reason;
+    response.cacheable = false;
+    response.body = utf8("{\"error\":\"" + reason + "\"}");
+
+    return response;
+  }
+
+  private static Response json(String body) {
+    Response response = new Response();
+    response.body = utf8(body);
+
+    return response;
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static long getLong(Request request, String name, long def) {
+    String value = request.params.get(name);
+
+    if (value == null || value.length() == 0) {
+      return def;
+    }
+
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return def;
+    }
+  }
+
+  private static int idFromPath(String path) {
+    int start = path.lastIndexOf('/') + 1;
+    int end = path.lastIndexOf('.');
+
+    try {
+      return Integer.parseInt(path.substring(start, end > start ? end
+          : path.length()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static int userIndex(String screenName) {
+    if (screenName != null && screenName.startsWith("user")) {
+      try {
+        return Integer.parseInt(screenName.substring(4)) % USER_COUNT;
+      } catch (NumberFormatException e) {
+        // Fall through.
+      }
+    }
+
+    return 0;
+  }
+
+  // Newest first, filtered the way the real API does. user is -1 for all.
+  private synchronized ArrayList<Item> select(ArrayList<Item> items,
+      Request request, int user) {
+    long sinceId = getLong(request, "since_id", 0);
+    long maxId = getLong(request, "max_id", 0);
+    int count = (int) getLong(request, "count", getLong(request, "rpp",
+        DEFAULT_COUNT));
+    int page = Math.max(1, (int) getLong(request, "page", 1));
+    int skip = (page - 1) * count;
+
+    ArrayList<Item> selected = new ArrayList<Item>();
+
+    for (int i = items.size() - 1; i >= 0 && selected.size() < count; --i) {
+      Item item = items.get(i);
+
+      if (item.id <= sinceId) {
+        break;
+      } else if (maxId > 0 && item.id > maxId) {
+        continue;
+      } else if (user >= 0 && item.user != user) {
+        continue;
+      } else if (skip > 0) {
+        --skip;
+        continue;
+      }
+
+      selected.add(item);
+    }
+
+    return selected;
+  }
+
+  // JSON writing.
+
+  private static String quote(String s) {
+    StringBuilder quoted = new StringBuilder("\"");
+
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+
+    return quoted.append('"').toString();
+  }
+
+  private static String formatDate(String pattern, Date date) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    return format.format(date);
+  }
+
+  private String profileImageUrl(int user) {
+    return "http://" + mHost.get() + "/images/" + user + ".png";
+  }
+
+  private String userJson(int user) {
+    return "{\"id\":" + (user + 1) + ",\"name\":" + quote("User " + user)
+        + ",\"screen_name\":" + quote("user" + user)
+        + ",\"location\":\"Nowhere\",\"description\":"
+        + quote("Mock user number " + user) + ",\"profile_image_url\":"
+        + quote(profileImageUrl(user)) + ",\"url\":\"http://example.com\"}";
+  }
+
+  private String tweetJson(Item item) {
+    return "{\"id\":" + item.id + ",\"text\":" + quote(item.text)
+        + ",\"created_at\":"
+        + quote(formatDate("EEE MMM dd HH:mm:ss Z yyyy", item.createdAt))
+        + ",\"source\":\"web\",\"user\":" + userJson(item.user) + "}";
+  }
+
+  private String dmJson(Item item) {
+    return "{\"id\":" + item.id + ",\"text\":" + quote(item.text)
+        + ",\"created_at\":"
+        + quote(formatDate("EEE MMM dd HH:mm:ss Z yyyy", item.createdAt))
+        + ",\"sender\":" + userJson(item.user) + ",\"recipient\":"
+        + userJson(item.recipient) + "}";
+  }
+
+  private String searchResultJson(Item item) {
+    return "{\"id\":" + item.id + ",\"text\":" + quote(item.text)
+        + ",\"created_at\":"
+        + quote(formatDate("EEE, dd MMM yyyy HH:mm:ss Z", item.createdAt))
+        + ",\"from_user\":" + quote("user" + item.user)
+        + ",\"from_user_id\":" + (item.user + 1)
+        + ",\"profile_image_url\":" + quote(profileImageUrl(item.user))
+        + ",\"source\":\"web\"}";
+  }
+
+  // Endpoints.
+
+  private String timeline(ArrayList<Item> items, Request request, int user) {
+    StringBuilder json = new StringBuilder("[");
+
+    for (Item item : select(items, request, user)) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+
+      json.append(tweetJson(item));
+    }
+
+    return json.append(']').toString();
+  }
+
+  private String dms(ArrayList<Item> items, Request request) {
+    StringBuilder json = new StringBuilder("[");
+
+    for (Item item : select(items, request, -1)) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+
+      json.append(dmJson(item));
+    }
+
+    return json.append(']').toString();
+  }
+
+  private String search(Request request) {
+    StringBuilder json = new StringBuilder("{\"results\":[");
+    boolean first = true;
+
+    for (Item item : select(mTweets, request, -1)) {
+      if (!first) {
+        json.append(',');
+      }
+
+      first = false;
+      json.append(searchResultJson(item));
+    }
+
+    return json.append("],\"query\":")
+        .append(quote(String.valueOf(request.params.get("q")))).append('}')
+        .toString();
+  }
+
+  private Response update(Request request) {
+    String status = request.params.get("status");
+
+    if (status == null) {
+      return error(403, "Forbidden");
+    }
+
+    Item item;
+
+    synchronized (this) {
+      item = newItem(0, 0, new Date());
+      item.text = status;
+      mTweets.add(item);
+    }
+
+    Response response = json(tweetJson(item));
+    response.cacheable = false;
+
+    return response;
+  }
+
+  private Response newDm(Request request) {
+    String text = request.params.get("text");
+
+    if (text == null) {
+      return error(403, "Forbidden");
+    }
+
+    Item item;
+
+    synchronized (this) {
+      item = newItem(0, userIndex(request.params.get("user")), new Date());
+      item.text = text;
+      mSentDms.add(item);
+    }
+
+    Response response = json(dmJson(item));
+    response.cacheable = false;
+
+    return response;
+  }
+
+  private Response destroyDm(String path) {
+    long id = idFromPath(path);
+    Item removed = null;
+
+    synchronized (this) {
+      removed = remove(mDms, id);
+
+      if (removed == null) {
+        removed = remove(mSentDms, id);
+      }
+    }
+
+    if (removed == null) {
+      return error(404, "Not Found");
+    }
+
+    Response response = json(dmJson(removed));
+    response.cacheable = false;
+
+    return response;
+  }
+
+  private static Item remove(ArrayList<Item> items, long id) {
+    for (int i = 0; i < items.size(); ++i) {
+      if (items.get(i).id == id) {
+        return items.remove(i);
+      }
+    }
+
+    return null;
+  }
+
+  private String followerIds() {
+    StringBuilder json = new StringBuilder("[");
+
+    // Every other user follows us.
+    for (int user = 1; user < USER_COUNT; user += 2) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+
+      json.append(user + 1);
+    }
+
+    return json.append(']').toString();
+  }
+
+  private String lookupUsers(Request request) {
+    StringBuilder json = new StringBuilder("[");
+    String names = request.params.get("screen_name");
+
+    if (names != null) {
+      for (String name : names.split(",")) {
+        if (json.length() > 1) {
+          json.append(',');
+        }
+
+        json.append(userJson(userIndex(name)));
+      }
+    }
+
+    return json.append(']').toString();
+  }
+
+  private String friendshipExists(Request request) {
+    int a = userIndex(request.params.get("user_a"));
+    int b = userIndex(request.params.get("user_b"));
+
+    return ((a + b) % 2 == 1) ? "true" : "false";
+  }
+
+  private Response upload(Request request) {
+    Response response = new Response();
+    response.contentType = "text/xml; charset=utf-8";
+    response.cacheable = false;
+
+    long id;
+
+    synchronized (this) {
+      id = mNextId++;
+    }
+
+    response.body = utf8("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<rsp stat=\"ok\">\n <mediaid>" + Long.toString(id, 36)
+        + "</mediaid>\n <mediaurl>http://" + mHost.get() + "/"
+        + Long.toString(id, 36) + "</mediaurl>\n</rsp>\n");
+
+    return response;
+  }
+
+  private Response avatar(String path) throws IOException {
+    int user = idFromPath(path) % USER_COUNT;
+    byte[] png;
+
+    synchronized (mAvatars) {
+      png = mAvatars.get(user);
+
+      if (png == null) {
+        png = createPng(AVATAR_SIZE, AVATAR_SIZE, 0x404040 + user * 0x030507);
+        mAvatars.put(user, png);
+      }
+    }
+
+    Response response = new Response();
+    response.contentType = "image/png";
+    response.body = png;
+
+    return response;
+  }
+
+  // A solid colour RGB PNG, built by hand to stay free of image libraries.
+  private static byte[] createPng(int width, int height, int rgb)
+      throws IOException {
+    byte[] raw = new byte[height * (1 + width * 3)];
+    int offset = 0;
+
+    for (int y = 0; y < height; ++y) {
+      raw[offset++] = 0; // No filter.
+
+      for (int x = 0; x < width; ++x) {
+        raw[offset++] = (byte) (rgb >> 16);
+        raw[offset++] = (byte) (rgb >> 8);
+        raw[offset++] = (byte) rgb;
+      }
+    }
+
+    Deflater deflater = new Deflater();
+    deflater.setInput(raw);
+    deflater.finish();
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+
+    while (!deflater.finished()) {
+      int n = deflater.deflate(buffer);
+      compressed.write(buffer, 0, n);
+    }
+
+    deflater.end();
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    writeInt(header, width);
+    writeInt(header, height);
+    header.write(8); // Bit depth.
+    header.write(2); // Truecolour.
+    header.write(0); // Deflate.
+    header.write(0); // Adaptive filtering.
+    header.write(0); // No interlace.
+
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    png.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a,
+        '\n' });
+    writeChunk(png, "IHDR", header.toByteArray());
+    writeChunk(png, "IDAT", compressed.toByteArray());
+    writeChunk(png, "IEND", new byte[0]);
+
+    return png.toByteArray();
+  }
+
+  private static void writeChunk(ByteArrayOutputStream out, String type,
+      byte[] data) throws IOException {
+    byte[] typeBytes = type.getBytes("US-ASCII");
+
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data);
+
+    writeInt(out, data.length);
+    out.write(typeBytes);
+    out.write(data);
+    writeInt(out, (int) crc.getValue());
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  private static void log(String message) {
+    System.out.println(TAG + ": " + message);
+  }
+
+  private static void usage() {
+    System.err.println("Usage: MockTwitterServer [--port N] [--latency MS]"
+        + " [--jitter MS] [--error-rate F] [--items N] [--text-length N]"
+        + " [--no-gzip]");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    MockTwitterServer server = new MockTwitterServer();
+    int latency = 0;
+    int jitter = 0;
+
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        String arg = args[i];
+
+        if (arg.equals("--no-gzip")) {
+          server.setGzip(false);
+        } else if (i + 1 >= args.length) {
+          usage();
+        } else if (arg.equals("--port")) {
+          server.setPort(Integer.parseInt(args[++i]));
+        } else if (arg.equals("--latency")) {
+          latency = Integer.parseInt(args[++i]);
+        } else if (arg.equals("--jitter")) {
+          jitter = Integer.parseInt(args[++i]);
+        } else if (arg.equals("--error-rate")) {
+          server.setErrorRate(Double.parseDouble(args[++i]));
+        } else if (arg.equals("--items")) {
+          server.setItemCount(Integer.parseInt(args[++i]));
+        } else if (arg.equals("--text-length")) {
+          server.setTextLength(Integer.parseInt(args[++i]));
+        } else {
+          usage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      usage();
+    }
+
+    server.setLatency(latency, jitter);
+    server.start();
+
+    // The accept thread is a daemon.
+    synchronized (server) {
+      server.wait();
+    }
+  }
+
+}